@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Builds initialized samplers and their reply lines for the JMH benchmarks.
+ * The benchmarks live in the client package so they can drive the package
+ * private engine classes the way the server does
+ * @author lordquackstar
+ */
+public class BenchmarkSupport {
+	public static final String nickPrefix = "jmeterBot";
+
+	/**
+	 * @return count samplers with every action enabled, ready to send
+	 */
+	public static IrcBotSampler[] createSamplers(int count) throws IOException {
+		IrcBotSampler[] samplers = new IrcBotSampler[count];
+		for (int i = 0; i < count; i++) {
+			IrcBotSampler sampler = new IrcBotSampler();
+			sampler.setName("Benchmark Sampler " + i);
+			sampler.setProperty(IrcBotSampler.botPrefix, nickPrefix);
+			sampler.setProperty(IrcBotSampler.channelPrefix, "#jmeter");
+			sampler.setProperty(IrcBotSampler.numChannels, "10");
+			sampler.setProperty(IrcBotSampler.command, "?jmeter");
+			sampler.setProperty(IrcBotSampler.targetNick, "benchBot");
+			for (String curAction : IrcBotSampler.responseTemplates.keySet())
+				sampler.setProperty(curAction, true);
+			sampler.init();
+			samplers[i] = sampler;
+		}
+		return samplers;
+	}
+
+	/**
+	 * A bot's reply to the sampler's request with the given sequence: a
+	 * channel message with textLength bytes of chatter before the token
+	 */
+	public static byte[] reply(IrcBotSampler sampler, int sequence, int textLength) {
+		String token = sampler.thisNick + (sequence == 0 ? "" : PendingRequest.sequenceSeparator + String.valueOf(sequence));
+		return ("PRIVMSG #jmeter0 :" + StringUtils.repeat("x", textLength) + " " + token).getBytes(IrcServer.charset);
+	}
+
+	/**
+	 * Start a server on a free port in a background thread
+	 * @return The server once it is listening
+	 */
+	public static IrcServer startServer(ServerEngine engine, int numEventLoops) throws Exception {
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		final IrcServer server = engine.createServer(port, null, numEventLoops);
+		Thread serverThread = new Thread("Benchmark-Server") {
+			@Override
+			public void run() {
+				try {
+					server.init();
+				} catch (IOException e) {
+					if (!server.isClosedGood())
+						e.printStackTrace();
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		server.awaitListening(5000);
+		return server;
+	}
+
+	/**
+	 * A client that drops everything sent to it, for benchmarks that don't
+	 * need a socket
+	 */
+	public static IrcServer.Client nullClient(String nick) {
+		IrcServer.Client client = new IrcServer.Client() {
+			@Override
+			public void send(byte[] line, PendingRequest request) {
+				//Dropped
+			}
+
+			@Override
+			public void close() {
+				//Nothing to close
+			}
+
+			@Override
+			public int getOutboundDepth() {
+				return 0;
+			}
+		};
+		client.setInitNick(nick);
+		return client;
+	}
+}
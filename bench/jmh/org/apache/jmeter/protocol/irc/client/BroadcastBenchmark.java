@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Channel broadcast throughput as membership grows. members clients join one
+ * channel, then lines are broadcast to it straight from the server and timed
+ * until every member has received all of them. Members are drained by one
+ * selector thread that only counts line endings. The score is broadcast lines,
+ * multiply by members for deliveries
+ * @author lordquackstar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(BroadcastBenchmark.linesPerInvocation)
+public class BroadcastBenchmark {
+	public static final int linesPerInvocation = 100;
+	protected static final byte[] broadcastLine = ":jmeterBot000000000!~jmeter@bots.jmeter PRIVMSG #bench :The quick brown fox jumps over the lazy dog\r\n".getBytes(IrcServer.charset);
+	@Param({"NIO", "BLOCKING"})
+	public String engine;
+	@Param({"10", "100", "1000"})
+	public int members;
+	protected IrcServer server;
+	protected Channel channel;
+	protected Drainer drainer;
+	protected final List<SocketChannel> sockets = new ArrayList<SocketChannel>();
+
+	@Setup
+	public void setup() throws Exception {
+		server = BenchmarkSupport.startServer(ServerEngine.fromString(engine), Runtime.getRuntime().availableProcessors());
+		drainer = new Drainer();
+		Thread drainThread = new Thread(drainer, "Benchmark-Drainer");
+		drainThread.setDaemon(true);
+		drainThread.start();
+
+		//Join everyone, then wait for the join storm to finish
+		for (int i = 0; i < members; i++) {
+			SocketChannel socket = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+			socket.write(ByteBuffer.wrap(("NICK benchBot" + i + "\r\nJOIN #bench\r\n").getBytes(IrcServer.charset)));
+			sockets.add(socket);
+			drainer.add(socket);
+		}
+		channel = server.getChannel("#bench");
+		while (channel.getMemberCount() < members)
+			Thread.sleep(10);
+		drainer.awaitQuiet();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		drainer.stop();
+		for (SocketChannel curSocket : sockets)
+			curSocket.close();
+		server.close();
+	}
+
+	@Benchmark
+	public void broadcast() {
+		long expected = drainer.getLines() + (long) linesPerInvocation * members;
+		for (int i = 0; i < linesPerInvocation; i++)
+			server.broadcast(channel, broadcastLine, null);
+		while (drainer.getLines() < expected)
+			Thread.yield();
+	}
+
+	/**
+	 * Reads every member socket, counting lines
+	 */
+	protected static class Drainer implements Runnable {
+		protected final Selector selector;
+		protected final ConcurrentLinkedQueue<SocketChannel> newSockets = new ConcurrentLinkedQueue<SocketChannel>();
+		protected final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+		protected final AtomicLong lines = new AtomicLong();
+		protected volatile boolean running = true;
+
+		public Drainer() throws IOException {
+			selector = Selector.open();
+		}
+
+		public void add(SocketChannel socket) {
+			newSockets.add(socket);
+			selector.wakeup();
+		}
+
+		public long getLines() {
+			return lines.get();
+		}
+
+		/**
+		 * Wait until nothing has arrived for a while
+		 */
+		public void awaitQuiet() throws InterruptedException {
+			long last = -1;
+			while (last != lines.get()) {
+				last = lines.get();
+				Thread.sleep(250);
+			}
+		}
+
+		public void stop() throws IOException {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select(100);
+					SocketChannel socket;
+					while ((socket = newSockets.poll()) != null) {
+						socket.configureBlocking(false);
+						socket.register(selector, SelectionKey.OP_READ);
+					}
+					Iterator<SelectionKey> keyItr = selector.selectedKeys().iterator();
+					while (keyItr.hasNext()) {
+						SelectionKey key = keyItr.next();
+						keyItr.remove();
+						buffer.clear();
+						if (((SocketChannel) key.channel()).read(buffer) == -1) {
+							key.cancel();
+							continue;
+						}
+						int count = 0;
+						for (int i = 0; i < buffer.position(); i++)
+							if (buffer.get(i) == '\n')
+								count++;
+						lines.addAndGet(count);
+					}
+				}
+				selector.close();
+			} catch (IOException e) {
+				if (running)
+					e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching a bot's line to the request waiting on it, the work
+ * IrcServer.handleLine() does for every line a bot sends. Every sampler has
+ * one request outstanding, which is registered again as soon as its reply
+ * is dispatched so the table stays the same size
+ * @author lordquackstar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	@Param({"1", "100", "10000"})
+	public int samplers;
+	/**
+	 * Bytes of chatter before the token, which the matcher has to scan past
+	 */
+	@Param({"16", "128", "400"})
+	public int textLength;
+	protected PendingRequestTable table;
+	protected IrcBotSampler[] samplerList;
+	protected PendingRequest[] requests;
+	protected byte[][] replies;
+	protected byte[] unrelated;
+	protected final IrcMessage message = new IrcMessage();
+	protected IrcServer.Client client;
+	protected int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		table = new PendingRequestTable(new LatencyRecorder());
+		client = BenchmarkSupport.nullClient("benchBot");
+		samplerList = BenchmarkSupport.createSamplers(samplers);
+		requests = new PendingRequest[samplers];
+		replies = new byte[samplers][];
+		for (int i = 0; i < samplers; i++) {
+			IrcBotSampler sampler = samplerList[i];
+			PendingRequest request = new PendingRequest(sampler, sampler.responseItems[0], 1);
+			request.start(new byte[0], System.nanoTime());
+			table.register(request, 0);
+			requests[i] = request;
+			replies[i] = BenchmarkSupport.reply(sampler, 1, textLength);
+		}
+		unrelated = ("PRIVMSG #jmeter0 :" + StringUtils.repeat("x", textLength)).getBytes(IrcServer.charset);
+	}
+
+	/**
+	 * A reply that completes its request
+	 */
+	@Benchmark
+	public boolean reply() {
+		int index = next;
+		next = next + 1 == samplers ? 0 : next + 1;
+		byte[] reply = replies[index];
+		message.parse(reply, 0, reply.length);
+		boolean matched = table.dispatch(message, System.nanoTime(), client);
+		//Put it back for the next round, dropping the completion
+		samplerList[index].completed.poll();
+		table.register(requests[index], 0);
+		return matched;
+	}
+
+	/**
+	 * A line that isn't a reply to anything, which has to be scanned anyway
+	 */
+	@Benchmark
+	public boolean unrelated() {
+		message.parse(unrelated, 0, unrelated.length);
+		return table.dispatch(message, System.nanoTime(), client);
+	}
+}
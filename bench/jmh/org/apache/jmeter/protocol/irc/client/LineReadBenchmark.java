@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The blocking engine's read loop in IrcServer.handleClientInput(): framing
+ * lines out of the socket stream with LineReader, parsing them in place, and
+ * optionally dispatching them as replies. The stream hands out at most
+ * chunkBytes per read, like a socket delivering segments
+ * @author lordquackstar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(LineReadBenchmark.linesPerInvocation)
+public class LineReadBenchmark {
+	public static final int linesPerInvocation = 1000;
+	@Param({"1", "100", "10000"})
+	public int samplers;
+	@Param({"16", "128", "400"})
+	public int textLength;
+	/**
+	 * Most bytes a single read returns, one Ethernet segment or a full buffer
+	 */
+	@Param({"1460", "65536"})
+	public int chunkBytes;
+	protected ChunkedInputStream in;
+	protected final IrcMessage message = new IrcMessage();
+	protected PendingRequestTable table;
+	protected IrcBotSampler[] samplerList;
+	protected PendingRequest[] requests;
+	protected IrcServer.Client client;
+
+	@Setup
+	public void setup() throws Exception {
+		table = new PendingRequestTable(new LatencyRecorder());
+		client = BenchmarkSupport.nullClient("benchBot");
+		samplerList = BenchmarkSupport.createSamplers(samplers);
+		requests = new PendingRequest[samplers];
+		for (int i = 0; i < samplers; i++) {
+			requests[i] = new PendingRequest(samplerList[i], samplerList[i].responseItems[0], 1);
+			requests[i].start(new byte[0], System.nanoTime());
+			table.register(requests[i], 0);
+		}
+
+		//Replies from samplers in turn
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < linesPerInvocation; i++) {
+			stream.write(BenchmarkSupport.reply(samplerList[i % samplers], 1, textLength));
+			stream.write('\r');
+			stream.write('\n');
+		}
+		in = new ChunkedInputStream(stream.toByteArray(), chunkBytes);
+	}
+
+	/**
+	 * Frame and parse only
+	 */
+	@Benchmark
+	public void read(Blackhole blackhole) throws IOException {
+		in.reset();
+		LineReader reader = new LineReader(in);
+		while (reader.readLine(message))
+			blackhole.consume(message.getNumParams());
+	}
+
+	/**
+	 * Frame, parse and dispatch every line as a reply, as handleLine() would
+	 */
+	@Benchmark
+	public void readAndDispatch(Blackhole blackhole) throws IOException {
+		in.reset();
+		LineReader reader = new LineReader(in);
+		int line = 0;
+		while (reader.readLine(message)) {
+			blackhole.consume(table.dispatch(message, reader.getReadNanos(), client));
+			//Register it again for the next pass
+			int index = line++ % samplers;
+			samplerList[index].completed.poll();
+			table.register(requests[index], 0);
+		}
+	}
+
+	/**
+	 * Replays a buffer handing out at most chunkBytes per read
+	 */
+	protected static class ChunkedInputStream extends ByteArrayInputStream {
+		protected final int chunkBytes;
+
+		public ChunkedInputStream(byte[] data, int chunkBytes) {
+			super(data);
+			this.chunkBytes = chunkBytes;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, chunkBytes));
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IrcServer.sendToClient() with several sampler threads sending to the same
+ * clients at once, through a real server and real sockets. Each client is
+ * drained by its own thread. Senders back off once too much is unread, so the
+ * score is the rate the engine can sustain rather than how fast the queues
+ * grow. Vary the number of sampler threads with -t
+ * @author lordquackstar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SendBenchmark {
+	/**
+	 * Most bytes sent but not yet drained before senders wait
+	 */
+	public static final long maxUnreadBytes = 8 * 1024 * 1024;
+	/**
+	 * Senders only add to the shared sent count this often, so the
+	 * backpressure check doesn't become the contention being measured
+	 */
+	public static final int sendsPerCheck = 256;
+	@Param({"BLOCKING", "NIO"})
+	public String engine;
+	/**
+	 * Connected bots the senders spread their lines over
+	 */
+	@Param({"1", "8"})
+	public int clients;
+	@Param({"64", "400"})
+	public int lineLength;
+	protected IrcServer server;
+	protected IrcServer.Client[] clientList;
+	protected final List<Socket> sockets = new ArrayList<Socket>();
+	protected byte[] line;
+	protected final AtomicLong sentBytes = new AtomicLong();
+	protected final AtomicLong drainedBytes = new AtomicLong();
+	protected final AtomicInteger threadCounter = new AtomicInteger();
+
+	@Setup
+	public void setup() throws Exception {
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		server = ServerEngine.fromString(engine).createServer(port, null, Runtime.getRuntime().availableProcessors());
+		Thread serverThread = new Thread("Benchmark-Server") {
+			@Override
+			public void run() {
+				try {
+					server.init();
+				} catch (IOException e) {
+					if (!server.isClosedGood())
+						e.printStackTrace();
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		server.awaitListening(5000);
+
+		for (int i = 0; i < clients; i++) {
+			final Socket socket = new Socket("127.0.0.1", port);
+			socket.getOutputStream().write(("NICK benchBot" + i + "\r\n").getBytes(IrcServer.charset));
+			sockets.add(socket);
+			Thread drainThread = new Thread("Benchmark-Drainer-" + i) {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[64 * 1024];
+					try {
+						InputStream in = socket.getInputStream();
+						int read;
+						while ((read = in.read(buffer)) != -1)
+							drainedBytes.addAndGet(read);
+					} catch (IOException e) {
+						//Closed at tear down
+					}
+				}
+			};
+			drainThread.setDaemon(true);
+			drainThread.start();
+		}
+		if (!server.awaitClients(clients, 10000))
+			throw new IllegalStateException("Only " + server.getClientCount() + " of " + clients + " clients connected");
+		clientList = server.getClients().toArray(new IrcServer.Client[clients]);
+
+		String prefix = ":jmeterBot000000000!~jmeter@bots.jmeter PRIVMSG #jmeter0 :";
+		line = (prefix + StringUtils.repeat("x", Math.max(1, lineLength - prefix.length() - 2)) + "\r\n").getBytes(IrcServer.charset);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		server.close();
+		for (Socket curSocket : sockets)
+			curSocket.close();
+	}
+
+	@Benchmark
+	public void send(Sender sender) throws IOException {
+		if (++sender.sends == sendsPerCheck) {
+			long sent = sentBytes.addAndGet((long) sender.sends * line.length);
+			sender.sends = 0;
+			while (sent - drainedBytes.get() > maxUnreadBytes)
+				Thread.yield();
+		}
+		IrcServer.Client client = clientList[sender.nextClient];
+		sender.nextClient = sender.nextClient + 1 == clientList.length ? 0 : sender.nextClient + 1;
+		//Every send shares the array like a broadcast would, its never modified
+		server.sendToClient(client, line);
+	}
+
+	/**
+	 * Per sampler thread state
+	 */
+	@State(Scope.Thread)
+	public static class Sender {
+		protected int sends = 0;
+		protected int nextClient;
+
+		@Setup(Level.Trial)
+		public void setup(SendBenchmark benchmark) {
+			//Start threads on different clients
+			nextClient = benchmark.threadCounter.getAndIncrement() % benchmark.clients;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a sampler's next line from the shared response templates, the
+ * work IrcBotSampler.sendNext() does before handing the line to a client.
+ * Cycles through every template and sampler so the slot values don't all sit
+ * in cache when there are many samplers
+ * @author lordquackstar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateRenderBenchmark {
+	@Param({"1", "100", "10000"})
+	public int samplers;
+	/**
+	 * Length of the command, which most templates include, so lines range
+	 * from short to near the 512 byte IRC limit
+	 */
+	@Param({"8", "64", "256"})
+	public int commandLength;
+	/**
+	 * If lines carry a sequence number, as they do with a window above 1
+	 */
+	@Param({"false", "true"})
+	public boolean tagged;
+	protected ResponseTemplate[] templates;
+	protected byte[][][] slotValues;
+	protected byte[] buffer = new byte[1024];
+	protected int next = 0;
+
+	@Setup
+	public void setup() {
+		List<ResponseTemplate> templateList = new ArrayList<ResponseTemplate>();
+		for (ResponseTemplate[] curGroup : IrcBotSampler.responseTemplates.values())
+			Collections.addAll(templateList, curGroup);
+		templates = templateList.toArray(new ResponseTemplate[templateList.size()]);
+
+		byte[] command = ("?" + StringUtils.repeat("x", commandLength - 1)).getBytes(IrcServer.charset);
+		byte[] targetNick = "benchBot".getBytes(IrcServer.charset);
+		slotValues = new byte[samplers][][];
+		for (int i = 0; i < samplers; i++) {
+			byte[][] values = new byte[ResponseTemplate.numSlots][];
+			values[ResponseTemplate.slotToken] = (BenchmarkSupport.nickPrefix + StringUtils.leftPad(String.valueOf(i), IrcBotSampler.nickNumberLength, "0")).getBytes(IrcServer.charset);
+			values[ResponseTemplate.slotTargetNick] = targetNick;
+			values[ResponseTemplate.slotCommand] = command;
+			values[ResponseTemplate.slotChannel] = ("#jmeter" + i % 10).getBytes(IrcServer.charset);
+			slotValues[i] = values;
+		}
+	}
+
+	@Benchmark
+	public int render() {
+		int index = next;
+		next = (next + 1) & Integer.MAX_VALUE;
+		ResponseTemplate template = templates[index % templates.length];
+		byte[][] values = slotValues[index % samplers];
+		int sequence = tagged ? 1 + (index & 0xFFFF) : 0;
+		int length = template.measure(values, sequence);
+		if (buffer.length < length)
+			buffer = new byte[length];
+		return template.render(values, sequence, buffer);
+	}
+}
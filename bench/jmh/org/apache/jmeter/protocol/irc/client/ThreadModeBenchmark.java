@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the platform thread per client engine against the virtual thread
+ * per client engine. Connects many clients, then drives PING round trips
+ * through every connection from the benchmark thread so the server side
+ * threads are the only thing that differs. The score is rounds, one line to
+ * and from every client, so multiply by clients for lines. The JVM's thread
+ * count is printed once the clients are connected, use -prof gc for memory
+ * @author lordquackstar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadModeBenchmark {
+	protected static final byte[] pingLine = "PING bench\r\n".getBytes(IrcServer.charset);
+	@Param({"BLOCKING", "VIRTUAL_THREADS"})
+	public String engine;
+	@Param({"100", "1000"})
+	public int clients;
+	protected IrcServer server;
+	protected final List<Socket> sockets = new ArrayList<Socket>();
+	protected final List<BufferedReader> readers = new ArrayList<BufferedReader>();
+	protected final List<OutputStream> writers = new ArrayList<OutputStream>();
+
+	@Setup
+	public void setup() throws Exception {
+		ServerEngine serverEngine = ServerEngine.fromString(engine);
+		if (serverEngine == ServerEngine.VIRTUAL_THREADS && !VirtualThreads.isSupported())
+			System.out.println("WARNING: This JVM doesn't support virtual threads, VIRTUAL_THREADS will fall back to platform threads");
+		server = BenchmarkSupport.startServer(serverEngine, 1);
+		for (int i = 0; i < clients; i++) {
+			Socket socket = new Socket("127.0.0.1", server.getPort());
+			socket.setTcpNoDelay(true);
+			sockets.add(socket);
+			readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream(), IrcServer.charset)));
+			writers.add(socket.getOutputStream());
+			writers.get(i).write(("NICK benchBot" + i + "\r\n").getBytes(IrcServer.charset));
+			//Wait for the welcome line
+			readers.get(i).readLine();
+		}
+		System.out.println(engine + " with " + clients + " clients: " + ManagementFactory.getThreadMXBean().getThreadCount() + " threads");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (Socket curSocket : sockets)
+			curSocket.close();
+		server.close();
+	}
+
+	@Benchmark
+	public void round() throws IOException {
+		for (OutputStream curWriter : writers)
+			curWriter.write(pingLine);
+		for (BufferedReader curReader : readers)
+			curReader.readLine();
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.Random;
+
+/**
+ * How a sampler decides when to send its next line
+ * @author lordquackstar
+ */
+public enum ArrivalMode {
+	/**
+	 * Send the next line once a reply comes back, so a slow bot slows down
+	 * the load offered to it
+	 */
+	CLOSED_LOOP("Closed Loop (Wait for Reply)"),
+	/**
+	 * Open loop, send at evenly spaced times no matter how many replies are
+	 * outstanding
+	 */
+	CONSTANT("Constant Rate"),
+	/**
+	 * Open loop, send with exponentially distributed gaps like independent
+	 * users would
+	 */
+	POISSON("Poisson Rate");
+	protected final String displayName;
+
+	ArrivalMode(String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @param rate Lines per second
+	 * @return Nanoseconds until the next line should be sent
+	 */
+	public long nextInterval(double rate, Random random) {
+		double meanNanos = 1000000000d / rate;
+		if (this == POISSON)
+			return (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+		return (long) meanNanos;
+	}
+
+	public static ArrivalMode fromString(String value) {
+		for (ArrivalMode curMode : values())
+			if (curMode.name().equals(value) || curMode.displayName.equals(value))
+				return curMode;
+		return CLOSED_LOOP;
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
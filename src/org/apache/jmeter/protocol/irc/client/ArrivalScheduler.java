@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Sends lines for every open loop sampler at their scheduled times from one
+ * thread. Sampler threads only collect replies, so a slow bot can't hold back
+ * the offered load. If sending falls behind, lines keep their original
+ * scheduled time so the delay shows up in their latency
+ * @author lordquackstar
+ */
+public class ArrivalScheduler implements Runnable {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected static ArrivalScheduler instance;
+	/**
+	 * Samplers ordered by when their next line is due
+	 */
+	protected final PriorityQueue<IrcBotSampler> queue = new PriorityQueue<IrcBotSampler>(16, IrcBotSampler.arrivalOrder);
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final Condition changed = lock.newCondition();
+	protected volatile boolean running = true;
+
+	/**
+	 * Start sending for the sampler, its first line is due immediately
+	 */
+	public static void schedule(IrcBotSampler sampler) {
+		schedule(sampler, System.nanoTime());
+	}
+
+	/**
+	 * Start sending for the sampler with its first line due at dueNanos
+	 */
+	public static synchronized void schedule(IrcBotSampler sampler, long dueNanos) {
+		if (instance == null) {
+			instance = new ArrivalScheduler();
+			Thread thread = new Thread(instance, "IrcServer-ArrivalScheduler");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		instance.add(sampler, dueNanos);
+	}
+
+	/**
+	 * Stop sending for every sampler
+	 */
+	public static synchronized void stopAll() {
+		if (instance == null)
+			return;
+		instance.stop();
+		instance = null;
+	}
+
+	protected void add(IrcBotSampler sampler, long dueNanos) {
+		lock.lock();
+		try {
+			sampler.setNextArrivalNanos(dueNanos);
+			queue.add(sampler);
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void stop() {
+		lock.lock();
+		try {
+			running = false;
+			queue.clear();
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		long sent = 0;
+		while (running) {
+			IrcBotSampler sampler;
+			lock.lock();
+			try {
+				sampler = queue.peek();
+				if (sampler == null) {
+					changed.awaitUninterruptibly();
+					continue;
+				}
+				long wait = sampler.getNextArrivalNanos() - System.nanoTime();
+				if (wait > 0) {
+					changed.awaitNanos(wait);
+					continue;
+				}
+				queue.poll();
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				lock.unlock();
+			}
+
+			//Send outside the lock, the due time stays the scheduled one
+			long due = sampler.getNextArrivalNanos();
+			long next = sampler.sendScheduled(due);
+			sent++;
+			if (next > 0 && running)
+				add(sampler, next);
+		}
+		log.debug("Arrival scheduler stopped after " + sent + " lines");
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Getter;
+
+/**
+ * A channel on the built in server. Members are either connected clients,
+ * which receive everything broadcast to the channel, or simulated users (the
+ * samplers' nicks), which only exist to make the channel look busy
+ * @author lordquackstar
+ */
+public class Channel {
+	@Getter
+	protected final String name;
+	protected final Set<IrcServer.Client> members = Collections.newSetFromMap(new ConcurrentHashMap<IrcServer.Client, Boolean>());
+	protected final Set<String> simulatedUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public Channel(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return True if the client wasn't already a member
+	 */
+	public boolean join(IrcServer.Client client) {
+		return members.add(client);
+	}
+
+	/**
+	 * @return True if the client was a member
+	 */
+	public boolean part(IrcServer.Client client) {
+		return members.remove(client);
+	}
+
+	public boolean isMember(IrcServer.Client client) {
+		return members.contains(client);
+	}
+
+	public void addSimulatedUser(String nick) {
+		simulatedUsers.add(nick);
+	}
+
+	public void removeSimulatedUser(String nick) {
+		simulatedUsers.remove(nick);
+	}
+
+	public void clearSimulatedUsers() {
+		simulatedUsers.clear();
+	}
+
+	/**
+	 * @return Live view of the connected clients in the channel
+	 */
+	public Set<IrcServer.Client> getMembers() {
+		return Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * @return Live view of the simulated users in the channel
+	 */
+	public Set<String> getSimulatedUsers() {
+		return Collections.unmodifiableSet(simulatedUsers);
+	}
+
+	public int getMemberCount() {
+		return members.size();
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + members.size() + " clients, " + simulatedUsers.size() + " simulated users)";
+	}
+}
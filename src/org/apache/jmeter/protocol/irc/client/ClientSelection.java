@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+/**
+ * How a sampler picks which connected client (bot) it talks to
+ * @author lordquackstar
+ */
+public enum ClientSelection {
+	/**
+	 * Spread lines over every connected client in turn
+	 */
+	ROUND_ROBIN("Round Robin"),
+	/**
+	 * Always use the same client for a given sampler (bot number modulo clients)
+	 */
+	BOT_NUMBER("Hash by Bot Number"),
+	/**
+	 * Use the client that registered with the configured nick
+	 */
+	NICK("Registered Nick"),
+	/**
+	 * Send channel lines to every client in the channel like a real server,
+	 * other lines round robin. The first member to reply completes the sample
+	 */
+	CHANNEL_BROADCAST("Channel Broadcast");
+	protected final String displayName;
+
+	ClientSelection(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public static ClientSelection fromString(String value) {
+		for (ClientSelection curSelection : values())
+			if (curSelection.name().equals(value) || curSelection.displayName.equals(value))
+				return curSelection;
+		return ROUND_ROBIN;
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
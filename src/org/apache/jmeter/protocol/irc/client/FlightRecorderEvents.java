@@ -0,0 +1,329 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Flight Recorder events for what the harness is doing, so a recording lines
+ * up sends, replies and samples with GC and thread parking. The event types
+ * are defined at runtime through jdk.jfr.EventFactory (Java 9+) by
+ * reflection, so the plugin still builds and runs on the Java versions JMeter
+ * supports, where every method here does nothing. An event costs one enabled
+ * check unless a recording has it enabled. Stack traces are off by default,
+ * and so are the per line events (LineSent, LineReceived and ReplyMatched)
+ * since there are several per sample. SampleCompleted carries the same
+ * timings once per sample; enable the rest in the recording's settings file
+ * when digging into a run
+ * @author lordquackstar
+ */
+public class FlightRecorderEvents {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected static final String namePrefix = "org.apache.jmeter.protocol.irc.";
+	protected static final String nanoseconds = "NANOSECONDS";
+	protected static final String bytes = "BYTES";
+	protected static final MethodHandle newEvent;
+	protected static final MethodHandle set;
+	protected static final MethodHandle commit;
+	protected static final MethodHandle isEnabled;
+	protected static final EventKind lineSent;
+	protected static final EventKind lineReceived;
+	protected static final EventKind replyMatched;
+	protected static final EventKind lineUnmatched;
+	protected static final EventKind sampleCompleted;
+
+	static {
+		MethodHandle newEventHandle = null;
+		MethodHandle setHandle = null;
+		MethodHandle commitHandle = null;
+		MethodHandle isEnabledHandle = null;
+		EventKind[] kinds = new EventKind[5];
+		try {
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			newEventHandle = lookup.unreflect(factoryClass.getMethod("newEvent")).asType(MethodType.methodType(Object.class, Object.class));
+			setHandle = lookup.unreflect(eventClass.getMethod("set", int.class, Object.class)).asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+			commitHandle = lookup.unreflect(eventClass.getMethod("commit")).asType(MethodType.methodType(void.class, Object.class));
+			isEnabledHandle = lookup.unreflect(eventTypeClass.getMethod("isEnabled")).asType(MethodType.methodType(boolean.class, Object.class));
+
+			Definer definer = new Definer(factoryClass);
+			kinds[0] = definer.define("LineSent", "IRC Line Sent", "A line queued for a client", false,
+					new Field(String.class, "nick", "Client Nick", null),
+					new Field(String.class, "eventType", "Event Type", null),
+					new Field(int.class, "size", "Size", bytes),
+					new Field(long.class, "scheduleLag", "Schedule Lag", nanoseconds));
+			kinds[1] = definer.define("LineReceived", "IRC Line Received", "A line read from a client", false,
+					new Field(String.class, "nick", "Client Nick", null),
+					new Field(String.class, "command", "Command", null),
+					new Field(int.class, "size", "Size", bytes),
+					new Field(long.class, "handleDelay", "Handle Delay", nanoseconds));
+			kinds[2] = definer.define("ReplyMatched", "IRC Reply Matched", "A line matched to the request it replies to", false,
+					new Field(String.class, "nick", "Client Nick", null),
+					new Field(String.class, "eventType", "Event Type", null),
+					new Field(int.class, "size", "Size", bytes),
+					new Field(boolean.class, "expected", "Expected Reply", null),
+					new Field(long.class, "latency", "Latency", nanoseconds),
+					new Field(long.class, "bot", "Bot Time", nanoseconds),
+					new Field(long.class, "match", "Match Time", nanoseconds));
+			kinds[3] = definer.define("LineUnmatched", "IRC Line Unmatched", "A line that was neither a reply nor a command the server handles", true,
+					new Field(String.class, "nick", "Client Nick", null),
+					new Field(String.class, "command", "Command", null),
+					new Field(int.class, "size", "Size", bytes));
+			kinds[4] = definer.define("SampleCompleted", "IRC Sample Completed", "A sampler picking up its completed request", true,
+					new Field(String.class, "sampler", "Sampler", null),
+					new Field(String.class, "nick", "Bot Nick", null),
+					new Field(String.class, "eventType", "Event Type", null),
+					new Field(String.class, "outcome", "Outcome", null),
+					new Field(long.class, "latency", "Latency", nanoseconds),
+					new Field(long.class, "scheduleLag", "Schedule Lag", nanoseconds),
+					new Field(long.class, "write", "Write Time", nanoseconds),
+					new Field(long.class, "bot", "Bot Time", nanoseconds),
+					new Field(long.class, "match", "Match Time", nanoseconds),
+					new Field(long.class, "wake", "Wake Time", nanoseconds));
+		} catch (Throwable e) {
+			log.debug("Flight Recorder events not supported by this JVM: " + e);
+			Arrays.fill(kinds, null);
+		}
+		newEvent = newEventHandle;
+		set = setHandle;
+		commit = commitHandle;
+		isEnabled = isEnabledHandle;
+		lineSent = kinds[0];
+		lineReceived = kinds[1];
+		replyMatched = kinds[2];
+		lineUnmatched = kinds[3];
+		sampleCompleted = kinds[4];
+	}
+
+	public static boolean isSupported() {
+		return lineSent != null;
+	}
+
+	/**
+	 * @param line The encoded line including CRLF
+	 * @param request The request the line is for, or null
+	 */
+	public static void lineSent(IrcServer.Client client, byte[] line, PendingRequest request) {
+		if (!isRecording(lineSent))
+			return;
+		try {
+			Object event = newEvent.invokeExact(lineSent.factory);
+			set.invokeExact(event, 0, (Object) client.getInitNick());
+			set.invokeExact(event, 1, (Object) (request != null ? request.getTemplate().getEventType() : null));
+			set.invokeExact(event, 2, (Object) (line.length - 2));
+			set.invokeExact(event, 3, (Object) (request != null ? request.getScheduleLagNanos() : 0L));
+			commit.invokeExact(event);
+		} catch (Throwable e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * @param receivedNanos When the line was read off the socket
+	 */
+	public static void lineReceived(IrcServer.Client client, IrcMessage message, long receivedNanos) {
+		if (!isRecording(lineReceived))
+			return;
+		try {
+			Object event = newEvent.invokeExact(lineReceived.factory);
+			set.invokeExact(event, 0, (Object) client.getInitNick());
+			set.invokeExact(event, 1, (Object) getCommand(message));
+			set.invokeExact(event, 2, (Object) (message.getEnd() - message.getStart()));
+			set.invokeExact(event, 3, (Object) (System.nanoTime() - receivedNanos));
+			commit.invokeExact(event);
+		} catch (Throwable e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * @param expected False if the reply didn't match the event type's reply
+	 * rules
+	 */
+	public static void replyMatched(IrcServer.Client client, IrcMessage message, PendingRequest request, boolean expected) {
+		if (!isRecording(replyMatched))
+			return;
+		try {
+			Object event = newEvent.invokeExact(replyMatched.factory);
+			set.invokeExact(event, 0, (Object) client.getInitNick());
+			set.invokeExact(event, 1, (Object) request.getTemplate().getEventType());
+			set.invokeExact(event, 2, (Object) (message.getEnd() - message.getStart()));
+			set.invokeExact(event, 3, (Object) expected);
+			set.invokeExact(event, 4, (Object) request.getLatencyNanos());
+			set.invokeExact(event, 5, (Object) request.getBotNanos());
+			set.invokeExact(event, 6, (Object) request.getMatchNanos());
+			commit.invokeExact(event);
+		} catch (Throwable e) {
+			failed(e);
+		}
+	}
+
+	public static void lineUnmatched(IrcServer.Client client, IrcMessage message) {
+		if (!isRecording(lineUnmatched))
+			return;
+		try {
+			Object event = newEvent.invokeExact(lineUnmatched.factory);
+			set.invokeExact(event, 0, (Object) client.getInitNick());
+			set.invokeExact(event, 1, (Object) getCommand(message));
+			set.invokeExact(event, 2, (Object) (message.getEnd() - message.getStart()));
+			commit.invokeExact(event);
+		} catch (Throwable e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * @param nick The sampler's bot nick
+	 */
+	public static void sampleCompleted(String samplerName, String nick, PendingRequest request) {
+		if (!isRecording(sampleCompleted))
+			return;
+		String outcome;
+		if (request.getError() != null)
+			outcome = "error";
+		else if (request.isTimedOut())
+			outcome = "timeout";
+		else if (request.isWrongReply())
+			outcome = "wrong reply";
+		else
+			outcome = "reply";
+		try {
+			Object event = newEvent.invokeExact(sampleCompleted.factory);
+			set.invokeExact(event, 0, (Object) samplerName);
+			set.invokeExact(event, 1, (Object) nick);
+			set.invokeExact(event, 2, (Object) (request.getTemplate() != null ? request.getTemplate().getEventType() : null));
+			set.invokeExact(event, 3, (Object) outcome);
+			set.invokeExact(event, 4, (Object) request.getLatencyNanos());
+			set.invokeExact(event, 5, (Object) request.getScheduleLagNanos());
+			set.invokeExact(event, 6, (Object) request.getWriteNanos());
+			set.invokeExact(event, 7, (Object) request.getBotNanos());
+			set.invokeExact(event, 8, (Object) request.getMatchNanos());
+			set.invokeExact(event, 9, (Object) request.getWakeNanos());
+			commit.invokeExact(event);
+		} catch (Throwable e) {
+			failed(e);
+		}
+	}
+
+	protected static boolean isRecording(EventKind kind) {
+		if (kind == null)
+			return false;
+		try {
+			return (boolean) isEnabled.invokeExact(kind.eventType);
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	protected static String getCommand(IrcMessage message) {
+		return new String(message.getBuffer(), message.getCommandStart(), message.getCommandEnd() - message.getCommandStart(), IrcServer.charset);
+	}
+
+	protected static void failed(Throwable e) {
+		log.debug("Could not commit Flight Recorder event", e);
+	}
+
+	/**
+	 * An event field, with the unit it is shown in if any
+	 */
+	protected static class Field {
+		protected final Class<?> type;
+		protected final String name;
+		protected final String label;
+		protected final String unit;
+
+		protected Field(Class<?> type, String name, String label, String unit) {
+			this.type = type;
+			this.name = name;
+			this.label = label;
+			this.unit = unit;
+		}
+	}
+
+	/**
+	 * A defined event type and the factory for its events
+	 */
+	protected static class EventKind {
+		protected final Object factory;
+		protected final Object eventType;
+
+		protected EventKind(Object factory, Object eventType) {
+			this.factory = factory;
+			this.eventType = eventType;
+		}
+	}
+
+	/**
+	 * Builds event types out of jdk.jfr annotations and value descriptors
+	 */
+	protected static class Definer {
+		protected final Method create;
+		protected final Method getEventType;
+		protected final Constructor<?> annotationElement;
+		protected final Constructor<?> valueDescriptor;
+
+		protected Definer(Class<?> factoryClass) throws Exception {
+			create = factoryClass.getMethod("create", List.class, List.class);
+			getEventType = factoryClass.getMethod("getEventType");
+			annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+			valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+		}
+
+		protected Object annotation(String name, Object value) throws Exception {
+			return annotationElement.newInstance(Class.forName("jdk.jfr." + name), value);
+		}
+
+		/**
+		 * @param enabled If recordings include the event unless their settings
+		 * say otherwise
+		 */
+		protected EventKind define(String name, String label, String description, boolean enabled, Field... fields) throws Exception {
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation("Name", namePrefix + name));
+			annotations.add(annotation("Label", label));
+			annotations.add(annotation("Description", description));
+			annotations.add(annotation("Category", new String[]{"JMeter", "IRC"}));
+			annotations.add(annotation("StackTrace", false));
+			annotations.add(annotation("Enabled", enabled));
+			List<Object> descriptors = new ArrayList<Object>();
+			for (Field curField : fields) {
+				List<Object> fieldAnnotations = new ArrayList<Object>();
+				fieldAnnotations.add(annotation("Label", curField.label));
+				if (nanoseconds.equals(curField.unit))
+					fieldAnnotations.add(annotation("Timespan", nanoseconds));
+				else if (bytes.equals(curField.unit))
+					fieldAnnotations.add(annotation("DataAmount", bytes));
+				descriptors.add(valueDescriptor.newInstance(curField.type, curField.name, fieldAnnotations));
+			}
+			Object factory = create.invoke(null, annotations, descriptors);
+			return new EventKind(factory, getEventType.invoke(factory));
+		}
+	}
+}
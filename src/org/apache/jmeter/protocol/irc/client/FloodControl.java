@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+
+/**
+ * Emulates an ircd's flood control for one client. Lines are read as fast
+ * as they arrive but only handled as fast as a token bucket allows, the rest
+ * wait in a receive queue. If the queue grows past its limit the client is
+ * disconnected for excess flood. Only touched by the thread reading the
+ * client
+ * @author lordquackstar
+ */
+public class FloodControl {
+	protected final double tokensPerNano;
+	protected final double burst;
+	/**
+	 * Most bytes queued before the client is disconnected, 0 for no limit
+	 */
+	protected final int excessFloodBytes;
+	protected final Stats stats;
+	protected double tokens;
+	protected long refillNanos = System.nanoTime();
+	protected final ArrayDeque<QueuedLine> queue = new ArrayDeque<QueuedLine>();
+	/**
+	 * Read by monitoring threads
+	 */
+	@Getter
+	protected volatile int queuedLines = 0;
+	@Getter
+	protected volatile int queuedBytes = 0;
+
+	/**
+	 * @param rate Lines per second let through once the burst is used up
+	 * @param burst Lines let through at once after being idle
+	 */
+	public FloodControl(double rate, int burst, int excessFloodBytes, Stats stats) {
+		this.tokensPerNano = rate / 1000000000d;
+		this.burst = Math.max(1, burst);
+		this.excessFloodBytes = excessFloodBytes;
+		this.stats = stats;
+		tokens = this.burst;
+	}
+
+	protected void refill(long now) {
+		tokens = Math.min(burst, tokens + (now - refillNanos) * tokensPerNano);
+		refillNanos = now;
+	}
+
+	/**
+	 * Take a token for a line that was just read, or queue a copy of it if
+	 * there isn't one or earlier lines are still waiting
+	 * @return True if the line can be handled now
+	 */
+	public boolean admit(IrcMessage message, long receivedNanos) {
+		if (queue.isEmpty()) {
+			refill(receivedNanos);
+			if (tokens >= 1) {
+				tokens--;
+				return true;
+			}
+		}
+		byte[] line = message.copyLine();
+		queue.add(new QueuedLine(line, receivedNanos));
+		queuedLines++;
+		queuedBytes += line.length + 2;
+		stats.throttledLines.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return True if the queue is over its limit and the client should be
+	 * disconnected
+	 */
+	public boolean isExcess() {
+		return excessFloodBytes > 0 && queuedBytes > excessFloodBytes;
+	}
+
+	/**
+	 * @return The next queued line if a token is available for it, otherwise
+	 * null
+	 */
+	public QueuedLine poll(long now) {
+		if (queue.isEmpty())
+			return null;
+		refill(now);
+		if (tokens < 1)
+			return null;
+		tokens--;
+		QueuedLine line = queue.poll();
+		queuedLines--;
+		queuedBytes -= line.data.length + 2;
+		stats.waits.record(now - line.receivedNanos);
+		return line;
+	}
+
+	/**
+	 * @return Nanoseconds until the next queued line can be let through, 0 if
+	 * none are queued
+	 */
+	public long nanosUntilNext(long now) {
+		if (queue.isEmpty())
+			return 0;
+		refill(now);
+		return Math.max(1, (long) ((1 - tokens) / tokensPerNano));
+	}
+
+	/**
+	 * A line waiting for a token, without its CRLF
+	 */
+	public static class QueuedLine {
+		public final byte[] data;
+		public final long receivedNanos;
+
+		public QueuedLine(byte[] data, long receivedNanos) {
+			this.data = data;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+
+	/**
+	 * Flood control totals for a whole server
+	 */
+	public static class Stats {
+		protected final AtomicLong throttledLines = new AtomicLong();
+		protected final AtomicLong excessFloods = new AtomicLong();
+		/**
+		 * How long throttled lines waited between being read and handled
+		 */
+		@Getter
+		protected final LatencyHistogram waits = new LatencyHistogram();
+
+		public long getThrottledLines() {
+			return throttledLines.get();
+		}
+
+		public long getExcessFloods() {
+			return excessFloods.get();
+		}
+
+		public void excessFlood() {
+			excessFloods.incrementAndGet();
+		}
+
+		public String summary() {
+			return throttledLines.get() + " lines throttled, " + excessFloods.get() + " excess flood disconnects, wait " + waits.summary();
+		}
+	}
+}
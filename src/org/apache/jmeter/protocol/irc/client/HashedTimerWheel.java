@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Hashed timer wheel expiring pending requests. One thread ticks through a
+ * ring of buckets; a request lands in the bucket of its deadline tick (plus
+ * however many full rotations it needs), so adding a timeout is O(1) and no
+ * sampler thread ever does a timed wait. Each bucket is a linked list
+ * threaded through the requests themselves, so a request that got its reply
+ * is unlinked on the next tick instead of being held until its deadline
+ * @author lordquackstar
+ */
+public class HashedTimerWheel implements Runnable {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected final PendingRequestTable table;
+	protected final long tickNanos;
+	/**
+	 * Head of each bucket's list
+	 */
+	protected final PendingRequest[] buckets;
+	protected final int mask;
+	/**
+	 * Requests added since the last tick, moved into buckets by the wheel thread
+	 */
+	protected final ConcurrentLinkedQueue<PendingRequest> newTimeouts = new ConcurrentLinkedQueue<PendingRequest>();
+	/**
+	 * Requests completed since the last tick, unlinked by the wheel thread
+	 */
+	protected final ConcurrentLinkedQueue<PendingRequest> cancelledTimeouts = new ConcurrentLinkedQueue<PendingRequest>();
+	protected long startNanos;
+	protected long tick = 0;
+	protected volatile boolean running = true;
+	protected Thread thread;
+
+	/**
+	 * @param tickMillis Resolution of the wheel
+	 * @param wheelSize Number of buckets, rounded up to a power of 2
+	 */
+	public HashedTimerWheel(PendingRequestTable table, long tickMillis, int wheelSize) {
+		this.table = table;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+		buckets = new PendingRequest[size];
+		mask = size - 1;
+	}
+
+	public void start() {
+		startNanos = System.nanoTime();
+		thread = new Thread(this, "IrcServer-TimerWheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Schedule the request's timeout. Its deadline must already be set
+	 */
+	public void add(PendingRequest request) {
+		newTimeouts.add(request);
+	}
+
+	/**
+	 * Drop the request's timeout once it no longer needs one
+	 */
+	public void cancel(PendingRequest request) {
+		request.setTimeoutCancelled(true);
+		cancelledTimeouts.add(request);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			//Sleep until the end of the current tick
+			long deadline = startNanos + (tick + 1) * tickNanos;
+			long sleep;
+			while ((sleep = deadline - System.nanoTime()) > 0 && running)
+				LockSupport.parkNanos(this, sleep);
+			if (!running)
+				break;
+
+			transferNewTimeouts();
+			removeCancelledTimeouts();
+			expireBucket((int) (tick & mask), System.nanoTime());
+			tick++;
+		}
+		log.debug("Timer wheel stopped");
+	}
+
+	protected void transferNewTimeouts() {
+		PendingRequest request;
+		while ((request = newTimeouts.poll()) != null) {
+			//Completed before it ever reached a bucket
+			if (request.isTimeoutCancelled())
+				continue;
+			long deadlineTick = Math.max(0, request.getDeadlineNanos() - startNanos) / tickNanos;
+			//Already passed deadlines go in the current bucket
+			long bucketTick = Math.max(deadlineTick, tick);
+			request.setRemainingRounds((bucketTick - tick) / buckets.length);
+			link(request, (int) (bucketTick & mask));
+		}
+	}
+
+	protected void removeCancelledTimeouts() {
+		PendingRequest request;
+		while ((request = cancelledTimeouts.poll()) != null)
+			//Not linked if it was cancelled before being transferred
+			if (request.getWheelBucket() != -1)
+				unlink(request);
+	}
+
+	protected void expireBucket(int bucket, long now) {
+		PendingRequest request = buckets[bucket];
+		while (request != null) {
+			PendingRequest next = request.getWheelNext();
+			if (request.getRemainingRounds() > 0)
+				request.setRemainingRounds(request.getRemainingRounds() - 1);
+			else {
+				unlink(request);
+				if (request.getDeadlineNanos() - now <= 0)
+					//Only expires if its still waiting on a reply
+					table.expire(request);
+				else
+					//Sub tick remainder, try again next time
+					newTimeouts.add(request);
+			}
+			request = next;
+		}
+	}
+
+	protected void link(PendingRequest request, int bucket) {
+		PendingRequest head = buckets[bucket];
+		request.setWheelBucket(bucket);
+		request.setWheelPrev(null);
+		request.setWheelNext(head);
+		if (head != null)
+			head.setWheelPrev(request);
+		buckets[bucket] = request;
+	}
+
+	protected void unlink(PendingRequest request) {
+		PendingRequest prev = request.getWheelPrev();
+		PendingRequest next = request.getWheelNext();
+		if (prev == null)
+			buckets[request.getWheelBucket()] = next;
+		else
+			prev.setWheelNext(next);
+		if (next != null)
+			next.setWheelPrev(prev);
+		request.setWheelBucket(-1);
+		request.setWheelPrev(null);
+		request.setWheelNext(null);
+	}
+}
@@ -37,6 +37,7 @@ import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -59,7 +60,35 @@ public class IrcBotGui extends AbstractSamplerGui {
 	protected JTextField numChannels;
 	protected JTextField command;
 	protected JTextField targetNick;
+	protected JTextField window;
+	protected JTextField replyTimeout;
+	protected JComboBox<ArrivalMode> arrivalMode;
+	protected JTextField arrivalRate;
+	protected JTextField replayFile;
+	protected JComboBox<ReplayTiming> replayTiming;
+	protected JTextField replaySpeed;
+	protected JCheckBox leanResults;
+	protected JTextField fullResultEvery;
+	protected JComboBox<NameDistribution> channelDistribution;
+	protected JTextField channelSkew;
+	protected JComboBox<NameDistribution> nickDistribution;
+	protected JTextField nickSkew;
 	protected JTextField port;
+	protected JComboBox<ServerEngine> engine;
+	protected JTextField eventLoops;
+	protected JTextField maxBatchBytes;
+	protected JTextField lingerMicros;
+	protected JTextField histogramInterval;
+	protected JCheckBox tls;
+	protected JTextField keystore;
+	protected JTextField floodRate;
+	protected JTextField floodBurst;
+	protected JTextField excessFlood;
+	protected JTextField recordFile;
+	protected JTextField replyRules;
+	protected JTextField loopbackBots;
+	protected JComboBox<ClientSelection> clientSelection;
+	protected JTextField clientNick;
 	protected JCheckBox channelCommand;
 	protected JCheckBox PMCommand;
 	protected JCheckBox channelMessage;
@@ -73,7 +102,6 @@ public class IrcBotGui extends AbstractSamplerGui {
 	protected JCheckBox operatorBan;
 	protected JCheckBox userPart;
 	protected JCheckBox userQuit;
-	protected static IrcServer server;
 	JLabel statusLabel;
 	JLabel clientLabel;
 	JButton startStopButton;
@@ -101,8 +129,8 @@ public class IrcBotGui extends AbstractSamplerGui {
 		panel.add(statusLabel);
 		
 		clientLabel = new JLabel("");
-		updateClientConnected(false);
-		panel.add(statusLabel);
+		updateClientsConnected(0);
+		panel.add(clientLabel);
 
 		startStopButton = new JButton("Start");
 		panel.add(startStopButton);
@@ -115,7 +143,10 @@ public class IrcBotGui extends AbstractSamplerGui {
 						restartServer(Integer.parseInt(port.getText()));
 					else if (startStopButton.getText().equals("Stop"))
 						try {
-							server.close();
+							IrcServer server = IrcServerManager.getServer();
+							IrcServerManager.setServer(null);
+							if (server != null)
+								server.close();
 							startStopButton.setText("Start");
 							statusLabel.setText("Status: Stopped");
 							statusLabel.setForeground(Color.black);
@@ -134,13 +165,40 @@ public class IrcBotGui extends AbstractSamplerGui {
 			@Override
 			public void focusLost(FocusEvent e) {
 				int portValue = Integer.parseInt(port.getText());
-				if (e.getComponent() == port && server.getPort() != portValue)
+				IrcServer server = IrcServerManager.getServer();
+				if (e.getComponent() == port && server != null && server.getPort() != portValue)
 					//Recreate server with new port
 					restartServer(portValue);
 			}
 		});
 
-		ircServer.add(panel);
+		ircServer.add(panel, BorderLayout.NORTH);
+
+		//How the server serves its connections, takes effect on (re)start
+		HorizontalPanel enginePanel = new HorizontalPanel();
+		enginePanel.add(new JLabel("Engine: "));
+		enginePanel.add(engine = new JComboBox<ServerEngine>(ServerEngine.values()));
+		enginePanel.add(generateTextField(eventLoops = new JTextField(String.valueOf(Runtime.getRuntime().availableProcessors()), 4), "Event Loops: "));
+		enginePanel.add(generateTextField(maxBatchBytes = new JTextField("16384", 6), "Batch Bytes: "));
+		enginePanel.add(generateTextField(lingerMicros = new JTextField("0", 4), "Linger (us): "));
+		enginePanel.add(generateTextField(histogramInterval = new JTextField("0", 4), "Histogram Interval (s): "));
+		enginePanel.add(tls = new JCheckBox("TLS"));
+		enginePanel.add(generateTextField(keystore = new JTextField(TlsSupport.defaultKeystore, 12), "Keystore: "));
+		ircServer.add(enginePanel, BorderLayout.CENTER);
+
+		//Which client each sampler talks to
+		HorizontalPanel clientPanel = new HorizontalPanel();
+		clientPanel.add(new JLabel("Target Client: "));
+		clientPanel.add(clientSelection = new JComboBox<ClientSelection>(ClientSelection.values()));
+		clientPanel.add(generateTextField(clientNick = new JTextField("", 10), "Client Nick: "));
+		clientPanel.add(generateTextField(recordFile = new JTextField("", 20), "Record Traffic To: "));
+		clientPanel.add(generateTextField(replyRules = new JTextField("", 20), "Reply Rules: "));
+		clientPanel.add(generateTextField(loopbackBots = new JTextField("0", 4), "Loopback Bots: "));
+		//Throttle each client's lines like an ircd, 0 lines/sec for no throttling
+		clientPanel.add(generateTextField(floodRate = new JTextField("0", 4), "Flood Lines/sec: "));
+		clientPanel.add(generateTextField(floodBurst = new JTextField("5", 4), "Flood Burst: "));
+		clientPanel.add(generateTextField(excessFlood = new JTextField("0", 6), "Excess Flood Bytes: "));
+		ircServer.add(clientPanel, BorderLayout.SOUTH);
 		return ircServer;
 	}
 
@@ -148,10 +206,26 @@ public class IrcBotGui extends AbstractSamplerGui {
 		new Thread() {
 			@Override
 			public void run() {
+				IrcServer server = IrcServerManager.getServer();
 				try {
 					if (server != null)
 						server.close();
-					server = new IrcServer(portValue, IrcBotGui.this);
+					server = ((ServerEngine) engine.getSelectedItem()).createServer(portValue, IrcBotGui.this, Integer.parseInt(eventLoops.getText()));
+					IrcServerManager.setServer(server);
+					server.setMaxBatchBytes(Integer.parseInt(maxBatchBytes.getText()));
+					server.setLingerMicros(Long.parseLong(lingerMicros.getText()));
+					server.setHistogramIntervalSeconds(Integer.parseInt(histogramInterval.getText()));
+					server.setFloodRate(Double.parseDouble(floodRate.getText()));
+					server.setFloodBurst(Integer.parseInt(floodBurst.getText()));
+					server.setExcessFloodBytes(Integer.parseInt(excessFlood.getText()));
+					server.setRecordFile(recordFile.getText());
+					server.setReplyRules(replyRules.getText());
+					if (tls.isSelected())
+						server.setTls(keystore.getText(), TlsSupport.defaultKeystorePassword);
+					//Reference bots, reported on with the histograms
+					int numLoopbackBots = Integer.parseInt(loopbackBots.getText());
+					if (numLoopbackBots > 0)
+						LoopbackBot.startGroup(server, numLoopbackBots, server.getHistogramIntervalSeconds());
 					server.init();
 				} catch (final IOException ex) {
 					if (!server.isClosedGood())
@@ -180,13 +254,43 @@ public class IrcBotGui extends AbstractSamplerGui {
 	 * @return the panel for entering the data
 	 */
 	protected Component createBotInfoPanel() {
-		JPanel botInfoPanel = generatePanel(new GridLayout(2, 3), "Bot Information");
+		JPanel botInfoPanel = generatePanel(new GridLayout(5, 4), "Bot Information");
 
 		botInfoPanel.add(generateTextField(botPrefix = new JTextField("jmeterBot", 10), "Bot Prefix: "));
 		botInfoPanel.add(generateTextField(channelPrefix = new JTextField("#jmeter", 10), "Channel Prefix: "));
 		botInfoPanel.add(generateTextField(numChannels = new JTextField("1", 10), "Channels: "));
 		botInfoPanel.add(generateTextField(command = new JTextField("?jmeter", 10), "Command: "));
-		botInfoPanel.add(generateTextField(targetNick = new JTextField("", 10), "Target Nick: "));
+		botInfoPanel.add(generateTextField(targetNick = new JTextField("", 10), "Target Nicks: "));
+		botInfoPanel.add(generateTextField(window = new JTextField("1", 10), "Lines in Flight: "));
+		botInfoPanel.add(generateTextField(replyTimeout = new JTextField("0", 10), "Reply Timeout (ms): "));
+		JPanel arrivalPanel = new JPanel(new FlowLayout());
+		arrivalPanel.add(new JLabel("Arrivals: "));
+		arrivalPanel.add(arrivalMode = new JComboBox<ArrivalMode>(ArrivalMode.values()));
+		botInfoPanel.add(arrivalPanel);
+		botInfoPanel.add(generateTextField(arrivalRate = new JTextField("100", 10), "Lines/sec per Thread: "));
+		//Replaying a log instead of the actions below
+		botInfoPanel.add(generateTextField(replayFile = new JTextField("", 20), "Replay Log: "));
+		JPanel replayTimingPanel = new JPanel(new FlowLayout());
+		replayTimingPanel.add(new JLabel("Replay Timing: "));
+		replayTimingPanel.add(replayTiming = new JComboBox<ReplayTiming>(ReplayTiming.values()));
+		botInfoPanel.add(replayTimingPanel);
+		botInfoPanel.add(generateTextField(replaySpeed = new JTextField("1.0", 10), "Replay Speed: "));
+		//Only record details of failures and every so many samples
+		JPanel leanPanel = new JPanel(new FlowLayout());
+		leanPanel.add(leanResults = new JCheckBox("Lean Results"));
+		botInfoPanel.add(leanPanel);
+		botInfoPanel.add(generateTextField(fullResultEvery = new JTextField("0", 10), "Full Result Every: "));
+		//How lines are spread over channels and target nicks, empty skew for the default
+		JPanel channelDistributionPanel = new JPanel(new FlowLayout());
+		channelDistributionPanel.add(new JLabel("Channels: "));
+		channelDistributionPanel.add(channelDistribution = new JComboBox<NameDistribution>(NameDistribution.values()));
+		botInfoPanel.add(channelDistributionPanel);
+		botInfoPanel.add(generateTextField(channelSkew = new JTextField("", 10), "Channel Skew: "));
+		JPanel nickDistributionPanel = new JPanel(new FlowLayout());
+		nickDistributionPanel.add(new JLabel("Target Nicks: "));
+		nickDistributionPanel.add(nickDistribution = new JComboBox<NameDistribution>(NameDistribution.values()));
+		botInfoPanel.add(nickDistributionPanel);
+		botInfoPanel.add(generateTextField(nickSkew = new JTextField("", 10), "Nick Skew: "));
 
 		return botInfoPanel;
 	}
@@ -291,11 +395,13 @@ public class IrcBotGui extends AbstractSamplerGui {
 		return panel;
 	}
 	
-	protected void updateClientConnected(boolean hasClient) {
-		if(hasClient)
-			clientLabel.setText("Client connected");
+	protected void updateClientsConnected(int numClients) {
+		if (numClients == 0)
+			clientLabel.setText("No clients connected");
+		else if (numClients == 1)
+			clientLabel.setText("1 client connected");
 		else
-			clientLabel.setText("Client not connected");
+			clientLabel.setText(numClients + " clients connected");
 	}
 
 	@Override
@@ -315,6 +421,48 @@ public class IrcBotGui extends AbstractSamplerGui {
 		return sampler;
 	}
 
+	/**
+	 * Load a saved sampler's settings into the fields. Settings missing from
+	 * older test plans get the same defaults as a new sampler
+	 */
+	@Override
+	public void configure(TestElement te) {
+		super.configure(te);
+		botPrefix.setText(te.getPropertyAsString(IrcBotSampler.botPrefix, "jmeterBot"));
+		channelPrefix.setText(te.getPropertyAsString(IrcBotSampler.channelPrefix, "#jmeter"));
+		numChannels.setText(te.getPropertyAsString(IrcBotSampler.numChannels, "1"));
+		command.setText(te.getPropertyAsString(IrcBotSampler.command, "?jmeter"));
+		targetNick.setText(te.getPropertyAsString(IrcBotSampler.targetNick, ""));
+		window.setText(te.getPropertyAsString(IrcBotSampler.window, "1"));
+		replyTimeout.setText(te.getPropertyAsString(IrcBotSampler.replyTimeout, "0"));
+		arrivalMode.setSelectedItem(ArrivalMode.fromString(te.getPropertyAsString(IrcBotSampler.arrivalMode)));
+		arrivalRate.setText(te.getPropertyAsString(IrcBotSampler.arrivalRate, "100"));
+		replayFile.setText(te.getPropertyAsString(IrcBotSampler.replayFile, ""));
+		replayTiming.setSelectedItem(ReplayTiming.fromString(te.getPropertyAsString(IrcBotSampler.replayTiming)));
+		replaySpeed.setText(te.getPropertyAsString(IrcBotSampler.replaySpeed, "1.0"));
+		leanResults.setSelected(te.getPropertyAsBoolean(IrcBotSampler.leanResults, false));
+		fullResultEvery.setText(te.getPropertyAsString(IrcBotSampler.fullResultEvery, "0"));
+		channelDistribution.setSelectedItem(NameDistribution.fromString(te.getPropertyAsString(IrcBotSampler.channelDistribution)));
+		channelSkew.setText(te.getPropertyAsString(IrcBotSampler.channelSkew, ""));
+		nickDistribution.setSelectedItem(NameDistribution.fromString(te.getPropertyAsString(IrcBotSampler.nickDistribution)));
+		nickSkew.setText(te.getPropertyAsString(IrcBotSampler.nickSkew, ""));
+		channelCommand.setSelected(te.getPropertyAsBoolean(IrcBotSampler.channelCommand, true));
+		PMCommand.setSelected(te.getPropertyAsBoolean(IrcBotSampler.PMCommand, true));
+		channelMessage.setSelected(te.getPropertyAsBoolean(IrcBotSampler.channelMessage, true));
+		channelAction.setSelected(te.getPropertyAsBoolean(IrcBotSampler.channelAction, true));
+		channelNotice.setSelected(te.getPropertyAsBoolean(IrcBotSampler.channelNotice, true));
+		PMMessage.setSelected(te.getPropertyAsBoolean(IrcBotSampler.PMMessage, true));
+		PMAction.setSelected(te.getPropertyAsBoolean(IrcBotSampler.PMAction, true));
+		operatorOp.setSelected(te.getPropertyAsBoolean(IrcBotSampler.operatorOp, true));
+		operatorVoice.setSelected(te.getPropertyAsBoolean(IrcBotSampler.operatorVoice, true));
+		operatorKick.setSelected(te.getPropertyAsBoolean(IrcBotSampler.operatorKick, true));
+		operatorBan.setSelected(te.getPropertyAsBoolean(IrcBotSampler.operatorBan, true));
+		userPart.setSelected(te.getPropertyAsBoolean(IrcBotSampler.userPart, true));
+		userQuit.setSelected(te.getPropertyAsBoolean(IrcBotSampler.userQuit, true));
+		clientSelection.setSelectedItem(ClientSelection.fromString(te.getPropertyAsString(IrcBotSampler.clientSelection)));
+		clientNick.setText(te.getPropertyAsString(IrcBotSampler.clientNick, ""));
+	}
+
 	@Override
 	public void modifyTestElement(TestElement te) {
 		te.clear();
@@ -324,6 +472,19 @@ public class IrcBotGui extends AbstractSamplerGui {
 		te.setProperty(IrcBotSampler.numChannels, numChannels.getText());
 		te.setProperty(IrcBotSampler.command, command.getText());
 		te.setProperty(IrcBotSampler.targetNick, targetNick.getText());
+		te.setProperty(IrcBotSampler.window, window.getText());
+		te.setProperty(IrcBotSampler.replyTimeout, replyTimeout.getText());
+		te.setProperty(IrcBotSampler.arrivalMode, ((ArrivalMode) arrivalMode.getSelectedItem()).name());
+		te.setProperty(IrcBotSampler.arrivalRate, arrivalRate.getText());
+		te.setProperty(IrcBotSampler.replayFile, replayFile.getText());
+		te.setProperty(IrcBotSampler.replayTiming, ((ReplayTiming) replayTiming.getSelectedItem()).name());
+		te.setProperty(IrcBotSampler.replaySpeed, replaySpeed.getText());
+		te.setProperty(IrcBotSampler.leanResults, leanResults.isSelected());
+		te.setProperty(IrcBotSampler.fullResultEvery, fullResultEvery.getText());
+		te.setProperty(IrcBotSampler.channelDistribution, ((NameDistribution) channelDistribution.getSelectedItem()).name());
+		te.setProperty(IrcBotSampler.channelSkew, channelSkew.getText());
+		te.setProperty(IrcBotSampler.nickDistribution, ((NameDistribution) nickDistribution.getSelectedItem()).name());
+		te.setProperty(IrcBotSampler.nickSkew, nickSkew.getText());
 		te.setProperty(IrcBotSampler.channelCommand, channelCommand.isSelected());
 		te.setProperty(IrcBotSampler.PMCommand, PMCommand.isSelected());
 		te.setProperty(IrcBotSampler.channelMessage, channelMessage.isSelected());
@@ -337,9 +498,7 @@ public class IrcBotGui extends AbstractSamplerGui {
 		te.setProperty(IrcBotSampler.operatorBan, operatorBan.isSelected());
 		te.setProperty(IrcBotSampler.userPart, userPart.isSelected());
 		te.setProperty(IrcBotSampler.userQuit, userQuit.isSelected());
-	}
-	
-	static IrcServer getServer() {
-		return server;
+		te.setProperty(IrcBotSampler.clientSelection, ((ClientSelection) clientSelection.getSelectedItem()).name());
+		te.setProperty(IrcBotSampler.clientNick, clientNick.getText());
 	}
 }
@@ -18,13 +18,18 @@
  */
 package org.apache.jmeter.protocol.irc.client;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import lombok.Getter;
+import lombok.Setter;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.jmeter.engine.event.LoopIterationEvent;
@@ -32,6 +37,8 @@ import org.apache.jmeter.samplers.AbstractSampler;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.TestListener;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
@@ -45,6 +52,9 @@ public class IrcBotSampler extends AbstractSampler implements TestListener, Comp
 	public static final String channelPrefix = "IrcBotSampler.channelPrefix";
 	public static final String numChannels = "IrcBotSampler.numChannels";
 	public static final String command = "IrcBotSampler.command";
+	/**
+	 * Comma separated nicks, each line's target is picked from them
+	 */
 	public static final String targetNick = "IrcBotSampler.targetNick";
 	public static final String channelCommand = "IrcBotSampler.channelCommand";
 	public static final String PMCommand = "IrcBotSampler.PMCommand";
@@ -59,61 +69,227 @@ public class IrcBotSampler extends AbstractSampler implements TestListener, Comp
 	public static final String operatorBan = "IrcBotSampler.operatorBan";
 	public static final String userPart = "IrcBotSampler.userPart";
 	public static final String userQuit = "IrcBotSampler.userQuit";
+	public static final String clientSelection = "IrcBotSampler.clientSelection";
+	public static final String clientNick = "IrcBotSampler.clientNick";
+	public static final String window = "IrcBotSampler.window";
+	public static final String replyTimeout = "IrcBotSampler.replyTimeout";
+	public static final String arrivalMode = "IrcBotSampler.arrivalMode";
+	/**
+	 * Lines per second each open loop sampler sends
+	 */
+	public static final String arrivalRate = "IrcBotSampler.arrivalRate";
+	/**
+	 * Log to replay instead of the enabled actions, empty for none
+	 */
+	public static final String replayFile = "IrcBotSampler.replayFile";
+	public static final String replayTiming = "IrcBotSampler.replayTiming";
+	/**
+	 * How many times faster than logged to replay with scaled timing
+	 */
+	public static final String replaySpeed = "IrcBotSampler.replaySpeed";
+	/**
+	 * Most replayed lines get no reply at all, so without a reply timeout they
+	 * still need one
+	 */
+	public static final long defaultReplayTimeout = 1000;
+	/**
+	 * Successful samples only record timing, event type and response code,
+	 * failures still get the request and response
+	 */
+	public static final String leanResults = "IrcBotSampler.leanResults";
+	/**
+	 * With lean results, still record everything for 1 in this many
+	 * successful samples, 0 for none
+	 */
+	public static final String fullResultEvery = "IrcBotSampler.fullResultEvery";
+	/**
+	 * How lines are spread over channels and target nicks. Skew tunes the
+	 * distribution, empty for its default
+	 */
+	public static final String channelDistribution = "IrcBotSampler.channelDistribution";
+	public static final String channelSkew = "IrcBotSampler.channelSkew";
+	public static final String nickDistribution = "IrcBotSampler.nickDistribution";
+	public static final String nickSkew = "IrcBotSampler.nickSkew";
+	/**
+	 * Thread variables each sample sets with its stage timings in
+	 * microseconds, -1 if the stage didn't happen. Add them to the
+	 * sample_variables JMeter property to save them with results
+	 */
+	public static final String writeStageVariable = "ircWriteMicros";
+	public static final String botStageVariable = "ircBotMicros";
+	public static final String matchStageVariable = "ircMatchMicros";
+	public static final String wakeStageVariable = "ircWakeMicros";
+	public static final String scheduleLagVariable = "ircScheduleLagMicros";
+	/**
+	 * Orders open loop samplers by when their next line is due
+	 */
+	protected static final Comparator<IrcBotSampler> arrivalOrder = new Comparator<IrcBotSampler>() {
+		@Override
+		public int compare(IrcBotSampler o1, IrcBotSampler o2) {
+			long diff = o1.nextArrivalNanos - o2.nextArrivalNanos;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	};
+	/**
+	 * Number of digits the bot number is padded to in a nick
+	 */
+	public static final int nickNumberLength = 9;
+	/**
+	 * Every possible response, keyed by the property that enables it. Compiled
+	 * once and shared by all samplers
+	 */
+	protected static final Map<String, ResponseTemplate[]> responseTemplates;
 	private static int classCount = 0; // keep track of classes created
+	@Getter
 	protected int botNumber;
-	protected IrcServer server = IrcBotGui.getServer();
+	/**
+	 * Looked up every sample since the server can be started after the
+	 * sampler is created
+	 */
+	protected IrcServer server;
 	protected int lastItem = -1;
-	protected List<String> responseItems = new ArrayList();
-	protected static Random channelRandom = new Random();
+	protected ResponseTemplate[] responseItems;
+	@Getter
+	protected String nickPrefix;
 	protected String thisNick;
-	protected StringBuilder requestData;
-	protected int requestDataLength;
-	protected CountDownLatch latch;
-	protected String responseLine;
+	/**
+	 * Values for each ResponseTemplate slot. The channel is picked per line
+	 */
+	protected final byte[][] slotValues = new byte[ResponseTemplate.numSlots][];
+	protected byte[][] channelNames;
+	protected String[] channelStrings;
+	/**
+	 * The server's Channel for each of channelNames, resolved once per server
+	 */
+	protected Channel[] channels;
+	protected IrcServer channelsServer;
+	protected byte[][] targetNicks;
+	protected NamePicker channelPicker;
+	protected NamePicker nickPicker;
+	protected ClientSelection selection;
+	/**
+	 * Reusable buffer lines are rendered into
+	 */
+	protected byte[] lineBuffer = new byte[512];
+	protected String requestData;
+	/**
+	 * Requests that got their reply but haven't been reported yet
+	 */
+	protected final LinkedBlockingQueue<PendingRequest> completed = new LinkedBlockingQueue<PendingRequest>();
+	protected int outstanding = 0;
+	protected int sequence = 0;
+	/**
+	 * Open loop state. Once scheduled, only the arrival scheduler sends
+	 */
+	protected boolean scheduled = false;
+	protected ArrivalMode openLoopMode;
+	protected double openLoopRate;
+	protected Random arrivalRandom;
+	@Getter
+	@Setter
+	protected long nextArrivalNanos;
+	/**
+	 * Replay state, replay is null when generating lines from the templates
+	 */
+	protected ReplayLog replay;
+	protected ReplayRewriter replayRewriter;
+	protected final ReplayLog.Line replayLine = new ReplayLog.Line();
+	/**
+	 * True if replayLine was read ahead to schedule it and is waiting to be sent
+	 */
+	protected boolean replayHeld = false;
+	protected ReplayTiming timing;
+	protected double timingSpeed;
+	protected boolean lean;
+	protected int fullEvery;
+	/**
+	 * Lines sent in lean mode, counts towards the next full result
+	 */
+	protected int leanCount = 0;
+
+	static {
+		Map<String, ResponseTemplate[]> templates = new LinkedHashMap<String, ResponseTemplate[]>();
+		addResponseGroup(templates, channelCommand, ":${thisHostmask} PRIVMSG ${channel} :${command} ${thisNick}");
+		addResponseGroup(templates, PMCommand, ":${thisHostmask} PRIVMSG ${targetNick} :${command} ${thisNick}");
+		addResponseGroup(templates, channelMessage, ":${thisHostmask} PRIVMSG ${channel} :${thisNick}");
+		addResponseGroup(templates, channelAction, ":${thisHostmask} PRIVMSG ${channel} :\u0001ACTION ${thisNick}\u0001");
+		addResponseGroup(templates, channelNotice, ":${thisHostmask} NOTICE ${channel} :${thisNick}");
+		addResponseGroup(templates, PMMessage, ":${thisHostmask} PRIVMSG ${targetNick} :${thisNick}");
+		addResponseGroup(templates, PMAction, ":${thisHostmask} PRIVMSG ${targetNick} :\u0001ACTION ${thisNick}\u0001");
+		addResponseGroup(templates, operatorOp, ":${thisHostmask} MODE ${channel} +o ${thisNick}", ":${thisHostmask} MODE ${channel} -o ${thisNick}");
+		addResponseGroup(templates, operatorVoice, ":${thisHostmask} MODE ${channel} +v ${thisNick}", ":${thisHostmask} MODE ${channel} -v ${thisNick}");
+		addResponseGroup(templates, operatorKick, ":${thisHostmask} KICK ${channel} ${targetNick}: ${thisNick}", ":${thisHostmask} JOIN :${channel}");
+		addResponseGroup(templates, operatorBan, ":${thisHostmask} MODE ${channel} +b ${thisNick}!*@*", ":${thisHostmask} MODE ${channel} -b ${thisNick}!*@*");
+		addResponseGroup(templates, userPart, ":${thisHostmask} PART ${channel}", ":${thisHostmask} JOIN :${channel}");
+		addResponseGroup(templates, userQuit, ":${thisHostmask} QUIT :${thisNick}", ":${thisHostmask} JOIN :${channel}");
+		responseTemplates = Collections.unmodifiableMap(templates);
+	}
 
 	public IrcBotSampler() {
 		botNumber = classCount++;
 	}
 
-	public void init() {
-		//Pad nick with 0s to generate a unique botName
-		thisNick = getPropertyAsString(botPrefix) + botNumber;
-		thisNick = StringUtils.rightPad(thisNick, getPropertyAsString(botPrefix).length() + 9, "0");
-
-		//Setup possible response list
-		List<Set<String>> responseGroups = new ArrayList();
-		if (getPropertyAsBoolean(channelCommand))
-			responseGroups.add(generateResponseSet(":${thisHostmask} PRIVMSG ${channel} :${command} ${thisNick}"));
-		if (getPropertyAsBoolean(PMCommand))
-			responseGroups.add(generateResponseSet(":${thisHostmask} PRIVMSG ${targetNick} :${command} ${thisNick}"));
-		if (getPropertyAsBoolean(channelMessage))
-			responseGroups.add(generateResponseSet(":${thisHostmask} PRIVMSG ${channel} :${thisNick}"));
-		if (getPropertyAsBoolean(channelAction))
-			responseGroups.add(generateResponseSet(":${thisHostmask} PRIVMSG ${channel} :\u0001ACTION ${thisNick}\u0001"));
-		if (getPropertyAsBoolean(channelNotice))
-			responseGroups.add(generateResponseSet(":${thisHostmask} NOTICE ${channel} :${thisNick}"));
-		if (getPropertyAsBoolean(PMMessage))
-			responseGroups.add(generateResponseSet(":${thisHostmask} PRIVMSG ${targetNick} :${thisNick}"));
-		if (getPropertyAsBoolean(PMAction))
-			responseGroups.add(generateResponseSet(":${thisHostmask} PRIVMSG ${targetNick} :\u0001ACTION ${thisNick}\u0001"));
-		if (getPropertyAsBoolean(operatorOp))
-			responseGroups.add(generateResponseSet(":${thisHostmask} MODE ${channel} +o ${thisNick}", ":${thisHostmask} MODE ${channel} -o ${thisNick}"));
-		if (getPropertyAsBoolean(operatorVoice))
-			responseGroups.add(generateResponseSet(":${thisHostmask} MODE ${channel} +v ${thisNick}", ":${thisHostmask} MODE ${channel} -v ${thisNick}"));
-		if (getPropertyAsBoolean(operatorKick))
-			responseGroups.add(generateResponseSet(":${thisHostmask} KICK ${channel} ${targetNick}: ${thisNick}", ":${thisHostmask} JOIN :${channel}"));
-		if (getPropertyAsBoolean(operatorBan))
-			responseGroups.add(generateResponseSet(":${thisHostmask} MODE ${channel} +b ${thisNick}!*@*", ":${thisHostmask} MODE ${channel} -b ${thisNick}!*@*"));
-		if (getPropertyAsBoolean(userPart))
-			responseGroups.add(generateResponseSet(":${thisHostmask} PART ${channel}", ":${thisHostmask} JOIN :${channel}"));
-		if (getPropertyAsBoolean(userQuit))
-			responseGroups.add(generateResponseSet(":${thisHostmask} QUIT :${thisNick}", ":${thisHostmask} JOIN :${channel}"));
+	protected static void addResponseGroup(Map<String, ResponseTemplate[]> templates, String property, String... responses) {
+		String eventType = property.substring(property.indexOf('.') + 1);
+		ResponseTemplate[] group = new ResponseTemplate[responses.length];
+		for (int i = 0; i < responses.length; i++)
+			group[i] = new ResponseTemplate(eventType, responses[i]);
+		templates.put(property, group);
+	}
+
+	public void init() throws IOException {
+		//Pad bot number with 0s to generate a unique, fixed width botName
+		nickPrefix = getPropertyAsString(botPrefix);
+		thisNick = nickPrefix + StringUtils.leftPad(String.valueOf(botNumber), nickNumberLength, "0");
+
+		//Encode everything lines are built from once
+		String targetNickLine = getPropertyAsString(targetNick);
+		String commandLine = getPropertyAsString(command);
+		slotValues[ResponseTemplate.slotToken] = thisNick.getBytes(IrcServer.charset);
+		String[] targetNickStrings = StringUtils.stripAll(StringUtils.split(targetNickLine, ','));
+		targetNicks = new byte[Math.max(1, targetNickStrings.length)][];
+		targetNicks[0] = new byte[0];
+		for (int i = 0; i < targetNickStrings.length; i++)
+			targetNicks[i] = targetNickStrings[i].getBytes(IrcServer.charset);
+		slotValues[ResponseTemplate.slotTargetNick] = targetNicks[0];
+		slotValues[ResponseTemplate.slotCommand] = commandLine.getBytes(IrcServer.charset);
+		channelNames = new byte[getPropertyAsInt(numChannels) + 1][];
+		channelStrings = new String[channelNames.length];
+		for (int i = 0; i < channelNames.length; i++) {
+			channelStrings[i] = getPropertyAsString(channelPrefix) + i;
+			channelNames[i] = channelStrings[i].getBytes(IrcServer.charset);
+		}
+		channelsServer = null;
+		//Names are picked from the tables above, each sampler with its own random
+		channelPicker = new NamePicker(NameDistribution.fromString(getPropertyAsString(channelDistribution)), channelNames.length, getSkew(channelSkew), botNumber);
+		nickPicker = new NamePicker(NameDistribution.fromString(getPropertyAsString(nickDistribution)), targetNicks.length, getSkew(nickSkew), ~botNumber);
+		selection = ClientSelection.fromString(getPropertyAsString(clientSelection));
+		lean = getPropertyAsBoolean(leanResults);
+		fullEvery = getPropertyAsInt(fullResultEvery, 0);
+		//Replay a log instead if one is set
+		String replayPath = getPropertyAsString(replayFile);
+		if (StringUtils.isNotBlank(replayPath)) {
+			replay = ReplayLog.open(replayPath);
+			replayRewriter = new ReplayRewriter(slotValues[ResponseTemplate.slotToken], slotValues[ResponseTemplate.slotTargetNick], channelNames);
+			timing = ReplayTiming.fromString(getPropertyAsString(replayTiming));
+			timingSpeed = timing == ReplayTiming.SCALED ? getPropertyAsDouble(replaySpeed) : 1;
+			if (timingSpeed <= 0)
+				throw new IllegalStateException("Replay speed must be more than 0");
+		}
+		requestData = new StringBuilder().append("${thisNick} - ").append(thisNick).append("\n\r").append("${thisHostmask} - ").append(thisNick).append("!~jmeter@bots.jmeter").append("\n\r").append("${targetNick} - ").append(targetNickLine).append("\n\r").append("${command} - ").append(commandLine).append("\n\r").toString();
+
+		//Setup possible response list from the enabled groups
+		List<ResponseTemplate[]> responseGroups = new ArrayList<ResponseTemplate[]>();
+		for (Map.Entry<String, ResponseTemplate[]> curEntry : responseTemplates.entrySet())
+			if (getPropertyAsBoolean(curEntry.getKey()))
+				responseGroups.add(curEntry.getValue());
 
 		//Randomly shuffle responses and compact response to a single response queue
 		Collections.shuffle(responseGroups);
-		for (Set<String> curGroup : responseGroups)
-			for (String curResponse : curGroup)
-				responseItems.add(curResponse);
+		List<ResponseTemplate> items = new ArrayList<ResponseTemplate>();
+		for (ResponseTemplate[] curGroup : responseGroups)
+			Collections.addAll(items, curGroup);
+		responseItems = items.toArray(new ResponseTemplate[items.size()]);
 	}
 
 	@Override
@@ -123,13 +299,16 @@ public class IrcBotSampler extends AbstractSampler implements TestListener, Comp
 		res.setSampleLabel(getName());
 
 		try {
-			if (responseItems.isEmpty()) {
+			if (responseItems == null) {
 				log.debug("Generating response items for IRC Sampler #" + botNumber);
 				init();
 				lastItem = -1;
 			}
+			if (responseItems.length == 0 && replay == null)
+				throw new IllegalStateException("No possible actions selected");
 
 			//Make sure the server is setup
+			server = IrcServerManager.getServer(botNumber);
 			if (server == null) {
 				res.setResponseCode("400");
 				res.setResponseMessage("Built In IRC server not started");
@@ -138,7 +317,8 @@ public class IrcBotSampler extends AbstractSampler implements TestListener, Comp
 			}
 
 			//Make sure there are clients to talk to
-			if (server.getClient() == null) {
+			IrcServer.Client client = selectClient(server);
+			if (client == null) {
 				res.setResponseCode("404");
 				res.setResponseMessage("No clients to talk to!");
 				res.setDataType(SampleResult.TEXT);
@@ -153,45 +333,71 @@ public class IrcBotSampler extends AbstractSampler implements TestListener, Comp
 				return res;
 			}
 
-			//Reset last item if nessesary
-			if (lastItem + 1 >= responseItems.size())
-				lastItem = -1;
-
-			//Get next item in the list
-			String lineItem = responseItems.get(lastItem + 1);
-			lastItem++;
-
-			//Replace channel if nessesary
-			if (lineItem.contains("${channel}")) {
-				String channelLine = getPropertyAsString(channelPrefix) + channelRandom.nextInt(getPropertyAsInt(numChannels) + 1);
-				lineItem = StringUtils.replace(lineItem, "${channel}", channelLine);
-				requestData.append("${channel} - ").append(channelLine).append("\n\r");
-			}
-			requestData.append("Processed Line - ").append(lineItem);
-
-			res.setSamplerData(requestData.toString());
-
-			//Reset request data
-			requestData.setLength(requestDataLength);
-
 			/*
-			 * Perform the sampling
+			 * Perform the sampling. In closed loop keep the window of
+			 * outstanding lines full, in open loop the scheduler does the
+			 * sending. Either way report whichever request completes first
 			 */
-			latch = new CountDownLatch(1);
-			server.addSampler(this);
-			res.sampleStart(); // Start timing
-			server.sendToClient(lineItem);
-			latch.await();
-			res.sampleEnd(); // End timimg
+			PendingRequest request;
+			if (!isOpenLoop()) {
+				int windowSize = Math.max(1, getPropertyAsInt(window, 1));
+				while (outstanding < windowSize)
+					sendNext(server, client, windowSize != 1, System.nanoTime());
+				request = completed.take();
+				outstanding--;
+			} else {
+				if (!scheduled)
+					startArrivals();
+				request = completed.take();
+			}
+			request.woken();
+			putStageVariables(request);
+			FlightRecorderEvents.sampleCompleted(getName(), thisNick, request);
 
 			/*
 			 * Set up the sample result details
 			 */
-			res.setResponseData(responseLine, null);
+			res.setStampAndTime(request.getStartTime(), request.getElapsed());
 			res.setDataType(SampleResult.TEXT);
+			if (request.getError() != null) {
+				res.setSamplerData(requestData);
+				res.setResponseCode("500");
+				res.setResponseMessage(request.getError());
+				return res;
+			}
+			if (request.isTimedOut() && replay == null) {
+				res.setSamplerData(requestData + "Processed Line - " + request.getLineString());
+				res.setResponseCode("408");
+				res.setResponseMessage("Timed out waiting for " + request.getTemplate().getEventType() + " reply after " + request.getElapsed() + "ms");
+				return res;
+			}
+			if (request.isWrongReply()) {
+				res.setSamplerData(requestData + "Processed Line - " + request.getLineString());
+				res.setResponseCode("417");
+				res.setResponseMessage("Unexpected " + request.getTemplate().getEventType() + " reply");
+				res.setResponseData(request.getResponse());
+				res.setDataEncoding(IrcServer.charset.name());
+				return res;
+			}
 
-			res.setResponseCodeOK();
+			//Successful, lean results skip building the request and response
 			res.setSuccessful(true);
+			if (!request.isDetailed()) {
+				res.setResponseCode(request.isTimedOut() ? "204" : "200");
+				res.setResponseMessage(request.getTemplate().getEventType());
+				return res;
+			}
+			res.setSamplerData(requestData + "Processed Line - " + request.getLineString());
+			if (request.isTimedOut()) {
+				//Most real traffic doesn't get a reply, the line was still delivered
+				res.setResponseCode("204");
+				res.setResponseMessage("No reply within " + request.getElapsed() + "ms");
+				return res;
+			}
+			res.setResponseData(request.getResponse());
+			res.setDataEncoding(IrcServer.charset.name());
+
+			res.setResponseCodeOK();
 		} catch (Exception ex) {
 			log.debug("Exception encountered when executing Sample", ex);
 			res.setResponseCode("500");
@@ -202,53 +408,255 @@ public class IrcBotSampler extends AbstractSampler implements TestListener, Comp
 		return res;
 	}
 
-	public boolean parseLine(String line) {
-		if (line.contains(thisNick)) {
-			responseLine = line;
-			latch.countDown();
+	/**
+	 * @return The skew property, NaN if it isn't set
+	 */
+	protected double getSkew(String property) {
+		String value = getPropertyAsString(property);
+		return StringUtils.isBlank(value) ? Double.NaN : Double.parseDouble(value.trim());
+	}
+
+	protected IrcServer.Client selectClient(IrcServer server) {
+		return server.selectClient(selection, botNumber, getPropertyAsString(clientNick));
+	}
+
+	/**
+	 * @return True if lines are sent on a schedule instead of when replies
+	 * come back
+	 */
+	protected boolean isOpenLoop() {
+		if (replay != null && timing.isTimed())
 			return true;
+		return ArrivalMode.fromString(getPropertyAsString(arrivalMode)) != ArrivalMode.CLOSED_LOOP;
+	}
+
+	/**
+	 * Hand this sampler to the arrival scheduler, which sends from now on
+	 */
+	protected void startArrivals() throws IOException {
+		if (replay != null && timing.isTimed()) {
+			//Read ahead so the first line can be scheduled at its logged time
+			if (!replay.next(replayLine))
+				throw new IllegalStateException("No replayable lines in " + replay.getPath());
+			replayHeld = true;
+			scheduled = true;
+			ArrivalScheduler.schedule(this, replay.dueNanos(replayLine.offsetMillis, timingSpeed));
+			return;
 		}
-		return false;
+		openLoopMode = ArrivalMode.fromString(getPropertyAsString(arrivalMode));
+		openLoopRate = getPropertyAsDouble(arrivalRate);
+		if (openLoopRate <= 0)
+			throw new IllegalStateException("Arrival rate must be more than 0 lines per second in open loop");
+		arrivalRandom = new Random(botNumber);
+		scheduled = true;
+		ArrivalScheduler.schedule(this);
 	}
 
-	protected Set<String> generateResponseSet(String... responses) {
-		Set<String> responseSet = new HashSet();
-		for (String curResponse : responses) {
-			String thisHostmaskLine = thisNick + "!~jmeter@bots.jmeter";
-
-			String targetNickLine = getPropertyAsString(targetNick);
-			String commandLine = getPropertyAsString(command);
-			curResponse = StringUtils.replace(curResponse, "${thisNick}", thisNick);
-			curResponse = StringUtils.replace(curResponse, "${thisHostmask}", thisHostmaskLine);
-			curResponse = StringUtils.replace(curResponse, "${targetNick}", targetNickLine);
-			curResponse = StringUtils.replace(curResponse, "${command}", commandLine);
-			if (requestData == null) {
-				requestData = new StringBuilder().append("${thisNick} - ").append(thisNick).append("\n\r").append("${thisHostmask} - ").append(thisHostmaskLine).append("\n\r").append("${targetNick} - ").append(targetNickLine).append("\n\r").append("${command} - ").append(commandLine).append("\n\r");
-				requestDataLength = requestData.length();
+	/**
+	 * Called by the arrival scheduler to send the line due at dueNanos
+	 * @return When the next line is due
+	 */
+	protected long sendScheduled(long dueNanos) {
+		try {
+			IrcServer curServer = IrcServerManager.getServer(botNumber);
+			if (curServer == null)
+				throw new IOException("Built In IRC server not started");
+			IrcServer.Client client = selectClient(curServer);
+			if (client == null)
+				throw new IOException("No clients to talk to!");
+			sendNext(curServer, client, true, dueNanos);
+		} catch (IOException e) {
+			//Still a sample, otherwise the missed arrival would go unnoticed
+			new PendingRequest(this, null, 0).fail(e.getMessage(), dueNanos);
+		} catch (RuntimeException e) {
+			//Escaping would kill the scheduler thread every open loop sampler shares
+			log.error("Failed to send scheduled line", e);
+			new PendingRequest(this, null, 0).fail(e.toString(), dueNanos);
+		}
+		if (replay != null && timing.isTimed())
+			try {
+				//The next line is due whenever it was logged
+				replayHeld = replay.next(replayLine);
+				return replayHeld ? replay.dueNanos(replayLine.offsetMillis, timingSpeed) : 0;
+			} catch (IOException e) {
+				log.error("Could not read replay log " + replay.getPath() + ", stopping replay", e);
+				return 0;
 			}
-			responseSet.add(curResponse);
+		return dueNanos + openLoopMode.nextInterval(openLoopRate, arrivalRandom);
+	}
+
+	/**
+	 * Send the next line in the response list as a new pending request
+	 * @param tagged If the line needs a sequence number because several can be
+	 * in flight
+	 * @param scheduledNanos When the line was due to be sent
+	 */
+	protected void sendNext(IrcServer server, IrcServer.Client client, boolean tagged, long scheduledNanos) throws IOException {
+		if (replay != null) {
+			sendReplayed(server, client, scheduledNanos);
+			return;
+		}
+
+		//Reset last item if nessesary
+		if (lastItem + 1 >= responseItems.length)
+			lastItem = -1;
+
+		//Get next item in the list
+		ResponseTemplate template = responseItems[lastItem + 1];
+		lastItem++;
+
+		//Pick channel if nessesary
+		int channelIndex = -1;
+		if (template.isUsesChannel()) {
+			channelIndex = channelPicker.next();
+			slotValues[ResponseTemplate.slotChannel] = channelNames[channelIndex];
+		}
+		if (template.isUsesTargetNick())
+			slotValues[ResponseTemplate.slotTargetNick] = targetNicks[nickPicker.next()];
+
+		//Only tag lines with a sequence number when several can be in flight
+		PendingRequest request = new PendingRequest(this, template, tagged ? nextSequence() : 0);
+		int length = template.measure(slotValues, request.getSequence());
+		if (lineBuffer.length < length)
+			lineBuffer = new byte[Math.max(length, lineBuffer.length * 2)];
+		template.render(slotValues, request.getSequence(), lineBuffer);
+		//The copy is owned by the client's outbound queue
+		byte[] line = Arrays.copyOf(lineBuffer, length);
+
+		request.start(line, scheduledNanos);
+		send(server, client, request, channelIndex, getPropertyAsLong(replyTimeout, 0));
+	}
+
+	/**
+	 * Send the next line of the replay log, rewritten into this sampler's
+	 * namespace. Always tagged since the reply may never come
+	 */
+	protected void sendReplayed(IrcServer server, IrcServer.Client client, long scheduledNanos) throws IOException {
+		if (!replayHeld && !replay.next(replayLine))
+			throw new IOException("No replayable lines in " + replay.getPath());
+		replayHeld = false;
+		int sequence = nextSequence();
+		int length = replayRewriter.rewrite(replayLine, sequence);
+		PendingRequest request = new PendingRequest(this, replayRewriter.getTemplate(), sequence);
+		request.start(Arrays.copyOf(replayRewriter.getBuffer(), length), scheduledNanos);
+		long timeout = getPropertyAsLong(replyTimeout, 0);
+		send(server, client, request, replayRewriter.getChannelIndex(), timeout > 0 ? timeout : defaultReplayTimeout);
+	}
+
+	/**
+	 * The server's channels indexed like channelNames. Looked up again only
+	 * if the sampler is now talking to a different server
+	 */
+	protected Channel[] getChannels(IrcServer server) {
+		if (channelsServer != server) {
+			Channel[] resolved = new Channel[channelStrings.length];
+			for (int i = 0; i < resolved.length; i++)
+				resolved[i] = server.getChannel(channelStrings[i]);
+			channels = resolved;
+			channelsServer = server;
 		}
-		return responseSet;
+		return channels;
+	}
+
+	/**
+	 * Register a started request and send it, to the whole channel if
+	 * broadcasting
+	 * @param channelIndex Index of the line's channel, -1 if it has none
+	 */
+	protected void send(IrcServer server, IrcServer.Client client, PendingRequest request, int channelIndex, long timeoutMillis) throws IOException {
+		ResponseTemplate template = request.getTemplate();
+		if (lean)
+			request.setDetailed(fullEvery > 0 && ++leanCount % fullEvery == 0);
+		Channel channel = channelIndex == -1 ? null : getChannels(server)[channelIndex];
+		trackMembership(server, template, channel);
+		server.addRequest(request, timeoutMillis);
+		try {
+			if (channel != null && selection == ClientSelection.CHANNEL_BROADCAST && channel.getMemberCount() > 0)
+				server.broadcast(channel, request);
+			else
+				server.sendToClient(client, request);
+		} catch (IOException e) {
+			server.removeRequest(request);
+			throw e;
+		} catch (RuntimeException e) {
+			server.removeRequest(request);
+			throw e;
+		}
+		outstanding++;
+	}
+
+	/**
+	 * Expose where the request's time went so harness overhead can be told
+	 * apart from the bot under test
+	 */
+	protected void putStageVariables(PendingRequest request) {
+		JMeterVariables variables = JMeterContextService.getContext().getVariables();
+		if (variables == null)
+			return;
+		variables.put(scheduleLagVariable, toMicros(request.getScheduleLagNanos()));
+		variables.put(writeStageVariable, toMicros(request.getWriteNanos()));
+		variables.put(botStageVariable, toMicros(request.getBotNanos()));
+		variables.put(matchStageVariable, toMicros(request.getMatchNanos()));
+		variables.put(wakeStageVariable, toMicros(request.getWakeNanos()));
+	}
+
+	protected static String toMicros(long nanos) {
+		return nanos < 0 ? "-1" : String.valueOf(nanos / 1000);
+	}
+
+	/**
+	 * Keep the simulated users in step with the lines this sampler sends: a
+	 * nick that says anything in a channel is in it until it parts or quits
+	 */
+	protected void trackMembership(IrcServer server, ResponseTemplate template, Channel channel) {
+		if (template.getCommand().equals("QUIT"))
+			server.removeSimulatedUser(thisNick);
+		else if (channel == null)
+			return;
+		else if (template.getCommand().equals("PART"))
+			channel.removeSimulatedUser(thisNick);
+		else
+			channel.addSimulatedUser(thisNick);
+	}
+
+	protected int nextSequence() {
+		//0 is reserved for untagged lines
+		sequence = sequence == Integer.MAX_VALUE ? 1 : sequence + 1;
+		return sequence;
+	}
+
+	/**
+	 * Called by the server once the reply to one of this sampler's requests
+	 * has been received
+	 */
+	public void requestCompleted(PendingRequest request) {
+		completed.add(request);
 	}
 
 	@Override
 	public void testEnded() {
-		server.clearSamplers();
+		ArrivalScheduler.stopAll();
+		ReplayLog.closeAll();
+		IrcServerManager.testEnded();
 	}
 
 	@Override
 	public void testStarted() {
-		//Do nothing
+		//Non-GUI runs have nobody to press Start
+		IrcServerManager.testStarted();
 	}
 
 	@Override
 	public void testStarted(String host) {
-		//Do nothing
+		//Remote engines get this instead of testStarted()
+		IrcServerManager.testStarted();
 	}
 
 	@Override
 	public void testEnded(String host) {
-		//Do nothing
+		ArrivalScheduler.stopAll();
+		ReplayLog.closeAll();
+		IrcServerManager.testEnded();
 	}
 
 	@Override
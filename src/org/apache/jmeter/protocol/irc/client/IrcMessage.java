@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * RFC 1459 message parsed in place over a byte buffer. The prefix, command
+ * and parameters are kept as offsets into the buffer instead of Strings, so
+ * one instance can be reused for every line a reader handles without
+ * allocating. Only valid until the buffer is reused
+ * @author lordquackstar
+ */
+@Getter
+public class IrcMessage {
+	/**
+	 * RFC 1459 allows at most 15 parameters
+	 */
+	public static final int maxParams = 15;
+	protected byte[] buffer;
+	/**
+	 * Start (inclusive) and end (exclusive) of the line, without CRLF
+	 */
+	protected int start;
+	protected int end;
+	/**
+	 * Prefix without the leading ':', prefixStart == prefixEnd if none
+	 */
+	protected int prefixStart;
+	protected int prefixEnd;
+	protected int commandStart;
+	protected int commandEnd;
+	protected int numParams;
+	/**
+	 * Parameter ranges. The trailing parameter doesn't include its ':'
+	 */
+	protected final int[] paramStarts = new int[maxParams];
+	protected final int[] paramEnds = new int[maxParams];
+
+	/**
+	 * Parse the line in buffer from start to end, which should not include
+	 * the CRLF
+	 * @return This message
+	 */
+	public IrcMessage parse(byte[] buffer, int start, int end) {
+		this.buffer = buffer;
+		this.start = start;
+		this.end = end;
+		numParams = 0;
+		int position = skipSpaces(start);
+
+		//Prefix
+		if (position < end && buffer[position] == ':') {
+			prefixStart = position + 1;
+			position = nextSpace(prefixStart);
+			prefixEnd = position;
+			position = skipSpaces(position);
+		} else
+			prefixStart = prefixEnd = position;
+
+		//Command
+		commandStart = position;
+		position = nextSpace(position);
+		commandEnd = position;
+
+		//Parameters, the last of which may be a trailing one with spaces
+		position = skipSpaces(position);
+		while (position < end && numParams < maxParams) {
+			if (buffer[position] == ':' || numParams == maxParams - 1) {
+				if (buffer[position] == ':')
+					position++;
+				paramStarts[numParams] = position;
+				paramEnds[numParams++] = end;
+				break;
+			}
+			paramStarts[numParams] = position;
+			position = nextSpace(position);
+			paramEnds[numParams++] = position;
+			position = skipSpaces(position);
+		}
+		return this;
+	}
+
+	protected int skipSpaces(int position) {
+		while (position < end && buffer[position] == ' ')
+			position++;
+		return position;
+	}
+
+	protected int nextSpace(int position) {
+		while (position < end && buffer[position] != ' ')
+			position++;
+		return position;
+	}
+
+	/**
+	 * Case insensitive comparison of the command
+	 * @param upperCommand The command in upper case ASCII
+	 */
+	public boolean isCommand(byte[] upperCommand) {
+		if (commandEnd - commandStart != upperCommand.length)
+			return false;
+		for (int i = 0; i < upperCommand.length; i++) {
+			byte curByte = buffer[commandStart + i];
+			if (curByte >= 'a' && curByte <= 'z')
+				curByte -= 'a' - 'A';
+			if (curByte != upperCommand[i])
+				return false;
+		}
+		return true;
+	}
+
+	public int getParamStart(int index) {
+		return paramStarts[index];
+	}
+
+	public int getParamEnd(int index) {
+		return paramEnds[index];
+	}
+
+	/**
+	 * Find needle in the line
+	 * @return The index into the buffer or -1
+	 */
+	public int indexOf(byte[] needle, int from) {
+		int last = end - needle.length;
+		outer:
+		for (int i = Math.max(from, start); i <= last; i++) {
+			for (int j = 0; j < needle.length; j++)
+				if (buffer[i + j] != needle[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return A copy of the whole line
+	 */
+	public byte[] copyLine() {
+		return Arrays.copyOfRange(buffer, start, end);
+	}
+
+	/**
+	 * Decode a parameter. Allocates, so only for rare paths
+	 */
+	public String getParam(int index) {
+		return new String(buffer, paramStarts[index], paramEnds[index] - paramStarts[index], IrcServer.charset);
+	}
+
+	/**
+	 * Decode the whole line. Allocates, so only for rare paths
+	 */
+	@Override
+	public String toString() {
+		return new String(buffer, start, end - start, IrcServer.charset);
+	}
+}
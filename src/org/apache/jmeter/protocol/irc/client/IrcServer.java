@@ -18,19 +18,34 @@
  */
 package org.apache.jmeter.protocol.irc.client;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLSocket;
 import lombok.Data;
 import lombok.Getter;
+import lombok.Setter;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
@@ -40,130 +55,699 @@ import org.apache.log.Logger;
  */
 public class IrcServer {
 	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected static final Charset charset = Charset.forName("UTF-8");
+	protected static final byte[] nickCommand = "NICK".getBytes(charset);
+	protected static final byte[] joinCommand = "JOIN".getBytes(charset);
+	protected static final byte[] partCommand = "PART".getBytes(charset);
+	protected static final byte[] pingCommand = "PING".getBytes(charset);
+	/**
+	 * Most names sent in one 353 line, keeps lines well under 512 bytes
+	 */
+	protected static final int namesPerLine = 20;
 	protected int port;
+	/**
+	 * Which shard of a sharded server this is, -1 if it isn't sharded
+	 */
+	@Getter
+	protected int shard = -1;
+	/**
+	 * Listen with SO_REUSEPORT so other shards can share the port
+	 */
+	@Getter
+	@Setter
+	protected boolean reusePort = false;
 	protected ServerSocket server;
-	protected Client client;
-	protected final ConcurrentSkipListSet<IrcBotSampler> samplers = new ConcurrentSkipListSet<IrcBotSampler>();
+	protected final ConcurrentSkipListSet<Client> clients = new ConcurrentSkipListSet<Client>();
+	/**
+	 * Snapshot of registered clients for cheap indexed (round robin) access.
+	 * Only clients that sent their NICK are in it, so lines are never sent to
+	 * a connection whose replies can't be attributed. Clients rarely connect
+	 * or disconnect so copy on write is fine
+	 */
+	protected final CopyOnWriteArrayList<Client> clientList = new CopyOnWriteArrayList<Client>();
+	protected final ConcurrentHashMap<String, Client> clientsByNick = new ConcurrentHashMap<String, Client>();
+	protected final AtomicInteger roundRobinCounter = new AtomicInteger();
+	@Getter
+	protected final LatencyRecorder latencies = new LatencyRecorder();
+	protected final PendingRequestTable pendingRequests = new PendingRequestTable(latencies);
+	@Getter
+	protected final ServerMetrics metrics = new ServerMetrics(this);
+	/**
+	 * Channels by lower case name
+	 */
+	protected final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+	protected final AtomicLong broadcastLines = new AtomicLong();
+	protected final AtomicLong broadcastDeliveries = new AtomicLong();
 	protected final String serverAddress = "irc.jmeter";
 	@Getter
 	protected boolean closedGood = false;
+	/**
+	 * Released once init() is accepting connections
+	 */
+	protected final CountDownLatch listening = new CountDownLatch(1);
+	/**
+	 * Run client readers on virtual threads if the JVM supports them
+	 */
+	@Getter
+	@Setter
+	protected boolean virtualThreads = false;
+	/**
+	 * Most bytes the blocking engine writes to a socket in one flush
+	 */
+	@Getter
+	@Setter
+	protected int maxBatchBytes = 16 * 1024;
+	/**
+	 * How long the blocking engine's writer waits for more lines before
+	 * flushing a batch that isn't full. 0 flushes as soon as the queue is empty
+	 */
+	@Getter
+	@Setter
+	protected long lingerMicros = 0;
+	/**
+	 * Records traffic for later replay, null when not recording
+	 */
+	protected volatile SessionRecorder recorder;
+	/**
+	 * Null when serving plaintext
+	 */
+	@Getter
+	protected TlsSupport tls;
+	/**
+	 * Flood control like an ircd's, lines per second each client's lines are
+	 * handled at after a burst. 0 to handle lines as fast as they arrive
+	 */
+	@Getter
+	@Setter
+	protected double floodRate = 0;
+	@Getter
+	@Setter
+	protected int floodBurst = 5;
+	/**
+	 * Bytes a throttled client can have queued before it is disconnected, 0
+	 * to never disconnect
+	 */
+	@Getter
+	@Setter
+	protected int excessFloodBytes = 0;
+	@Getter
+	protected final FloodControl.Stats floodStats = new FloodControl.Stats();
 	protected IrcBotGui gui;
 
 	public IrcServer(int port, IrcBotGui gui) {
 		this.port = port;
 		this.gui = gui;
+		metrics.register();
+	}
+
+	/**
+	 * Mark the server as one shard of several, naming its MBean after it
+	 */
+	public void setShard(int shard) {
+		this.shard = shard;
+		metrics.unregister();
+		metrics.register();
 	}
 
 	public void init() throws IOException {
-		server = new ServerSocket(port);
-		log.info("Server created on port " + port);
+		server = tls != null ? tls.createServerSocket() : new ServerSocket();
+		if (reusePort)
+			ReusePort.enable(server);
+		server.bind(new InetSocketAddress(port));
+		listening.countDown();
+		if (virtualThreads && !VirtualThreads.isSupported())
+			log.warn("Virtual threads requested but not supported by this JVM, using platform threads");
+		log.info((tls != null ? "TLS server" : "Server") + " created on port " + port + (virtualThreads && VirtualThreads.isSupported() ? " using virtual threads" : ""));
 		while (true) {
 			log.info("Waiting for clients");
-			Socket newSocket = server.accept();
-			if (client != null) {
-				//Only can handle one client
-				log.warn("Disconnecting new client, a current client is already connected");
-				newSocket.close();
-			}
-			client = new Client(newSocket);
+			final SocketClient client = new SocketClient(server.accept());
 			client.log("New client connection accepted");
-			gui.updateClientConnected(true);
-			//Handle client input in new thread
-			new Thread() {
+			addClient(client);
+			//Handle client input and output in new threads
+			VirtualThreads.newThread("IrcServer-Client-" + client.getClientNum(), new Runnable() {
+				@Override
+				public void run() {
+					handleClientInput(client);
+				}
+			}, virtualThreads).start();
+			client.setWriterThread(VirtualThreads.newThread("IrcServer-Writer-" + client.getClientNum(), new Runnable() {
 				@Override
 				public void run() {
-					handleClientInput();
+					handleClientOutput(client);
+				}
+			}, virtualThreads));
+			client.getWriterThread().start();
+		}
+	}
+
+	/**
+	 * Drain the client's outbound queue, coalescing queued lines into one
+	 * buffer and flushing once per batch. A batch ends when the buffer is full,
+	 * or when no new line is queued within the linger time of the last one
+	 */
+	public void handleClientOutput(SocketClient client) {
+		byte[] batch = new byte[maxBatchBytes];
+		//Lines in the current batch, timestamped once they've been written
+		List<OutboundLine> batchRequests = new ArrayList<OutboundLine>();
+		long lingerNanos = lingerMicros * 1000;
+		OutputStream out = client.getOut();
+		try {
+			while (!client.isClosed()) {
+				OutboundLine line = client.getOutbound().poll();
+				if (line == null) {
+					client.awaitOutbound();
+					continue;
 				}
-			}.start();
 
+				int batchSize = 0;
+				int batchLines = 0;
+				long batchBytes = 0;
+				while (line != null) {
+					ByteBuffer data = line.getData();
+					int length = data.remaining();
+					if (length > batch.length - batchSize && batchSize > 0) {
+						//Doesn't fit, write what we have first
+						out.write(batch, 0, batchSize);
+						batchSize = 0;
+						linesWritten(batchRequests);
+					}
+					if (length > batch.length)
+						//Bigger than a whole batch, write directly
+						out.write(data.array(), data.arrayOffset() + data.position(), length);
+					else {
+						data.get(batch, batchSize, length);
+						batchSize += length;
+					}
+					batchRequests.add(line);
+					batchLines++;
+					batchBytes += length;
+
+					line = client.getOutbound().poll();
+					if (line == null && lingerNanos > 0)
+						//Linger for more lines, measured from the one just added
+						line = client.pollOutbound(lingerNanos, TimeUnit.NANOSECONDS);
+				}
+				out.write(batch, 0, batchSize);
+				out.flush();
+				linesWritten(batchRequests);
+				client.batchWritten(batchLines);
+				metrics.written(batchLines, batchBytes);
+			}
+		} catch (IOException ex) {
+			if (!closedGood && clients.contains(client))
+				log.error("Client #" + client.getClientNum() + " raised exception during output. Forgetting about client now...", ex);
+			forgetClient(client);
 		}
+		client.log("Writer finished after " + client.getLinesWritten() + " lines in " + client.getBatchesWritten() + " batches");
+	}
+
+	protected static void linesWritten(List<OutboundLine> lines) {
+		long now = System.nanoTime();
+		for (OutboundLine curLine : lines)
+			curLine.written(now);
+		lines.clear();
 	}
 
-	public void handleClientInput() {
+	public void handleClientInput(SocketClient client) {
 		try {
-			String inputLine = "";
+			LineReader in = client.getIn();
+			IrcMessage message = new IrcMessage();
+			boolean registered = false;
 			try {
 				//Temporarily set timeout to 5 seconds
 				client.getSocket().setSoTimeout(5000);
+				if (tls != null)
+					handshake(client);
 				client.log("Waiting for initial Nick line");
 				//Wait for initial NICK line
-				while ((inputLine = client.getIn().readLine()) != null)
-					if (inputLine.toUpperCase().trim().startsWith("NICK ")) {
-						client.setInitNick(inputLine.split(" ", 2)[1]);
-						break;
-					}
+				while (!registered && in.readLine(message))
+					registered = handleNickLine(client, message);
 			} catch (SocketTimeoutException e) {
 				//Client hasn't responded, close the connection
 				client.log("Timed out sending Join. Disconnecting...");
-				forgetClient(client);
+				return;
+			}
+			if (!registered) {
+				client.log("Client disconnected before sending Nick");
+				return;
 			}
-
-			client.log("Nick recieved, continuing");
 
 			//Resume normal timeout
 			client.getSocket().setSoTimeout(0);
 
-			client.log("Sending that client has connected");
-			//Write line saying client has connected to this IRC server
-			client.getOut().write(":" + serverAddress + " 004 " + serverAddress + " jmeter-ircd-basic-0.1 ov b\r\n");
-			client.getOut().flush();
-
 			client.log("Awaiting input from user");
 			//Read input from user
-			Input:
-			while ((inputLine = client.getIn().readLine()) != null) {
-				//See if there are any wait requests on this
-				for (IrcBotSampler curSampler : samplers)
-					if (curSampler.parseLine(inputLine))
-						continue Input;
-				if (inputLine.toUpperCase().trim().startsWith("JOIN "))
-					sendToClient(":" + client.getInitNick() + "!~client@clients.jmeter JOIN :" + inputLine.split(" ", 2)[1]);
-				else
-					log.warn("Client # " + client.getClientNum() + "Line not matched - " + inputLine);
-			}
+			if (client.getFlood() != null)
+				handleThrottledInput(client, in, message);
+			else
+				while (in.readLine(message))
+					handleLine(client, message, in.getReadNanos());
 
 			//Client has disconnected, forget about
 			client.log("Client has disconnected, ending");
 		} catch (IOException ex) {
-			log.error("Client #" + client.getClientNum() + " raised exception during input. Forgetting about client now...", ex);
+			if (closedGood || !clients.contains(client))
+				//Socket was closed from our end
+				client.log("Client closed, ending");
+			else
+				log.error("Client #" + client.getClientNum() + " raised exception during input. Forgetting about client now...", ex);
 		} finally {
 			forgetClient(client);
-			gui.updateClientConnected(false);
 		}
 	}
 
-	public void addSampler(IrcBotSampler sampler) {
-		samplers.add(sampler);
+	/**
+	 * Read like an ircd, as fast as lines arrive, but only handle them as fast
+	 * as the client's flood control lets them through. The read times out
+	 * when the next queued line is due
+	 */
+	protected void handleThrottledInput(SocketClient client, LineReader in, IrcMessage message) throws IOException {
+		FloodControl flood = client.getFlood();
+		while (true) {
+			long waitNanos = releaseThrottled(client, message);
+			client.getSocket().setSoTimeout(waitNanos == 0 ? 0 : (int) Math.max(1, waitNanos / 1000000));
+			try {
+				if (!in.readLine(message))
+					return;
+			} catch (SocketTimeoutException e) {
+				continue;
+			}
+			if (flood.admit(message, in.getReadNanos()))
+				handleLine(client, message, in.getReadNanos());
+			else if (flood.isExcess()) {
+				excessFlood(client);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Handle the client's throttled lines that have a token now
+	 * @param message Reused to parse each line
+	 * @return Nanoseconds until the next queued line is due, 0 if none are
+	 * queued
+	 */
+	protected long releaseThrottled(Client client, IrcMessage message) throws IOException {
+		FloodControl flood = client.getFlood();
+		FloodControl.QueuedLine line;
+		while ((line = flood.poll(System.nanoTime())) != null) {
+			message.parse(line.data, 0, line.data.length);
+			handleLine(client, message, line.receivedNanos);
+		}
+		return flood.nanosUntilNext(System.nanoTime());
+	}
+
+	/**
+	 * Disconnect a client whose receive queue outgrew the limit. The ERROR
+	 * line is best effort since the connection is closed straight after
+	 */
+	protected void excessFlood(Client client) {
+		if (!clients.contains(client))
+			//Already disconnected by an earlier line
+			return;
+		floodStats.excessFlood();
+		log.warn("Client #" + client.getClientNum() + " " + client.getInitNick() + " disconnected for excess flood with " + client.getFlood().getQueuedBytes() + " bytes queued");
+		try {
+			client.send("ERROR :Closing Link: " + client.getInitNick() + " (Excess Flood)");
+		} catch (IOException e) {
+			client.log("Could not send excess flood error");
+		}
+		forgetClient(client);
+	}
+
+	/**
+	 * Finish the TLS handshake before the first read, so its cost is
+	 * measured instead of hidden in the read
+	 */
+	protected void handshake(SocketClient client) throws IOException {
+		SSLSocket socket = (SSLSocket) client.getSocket();
+		try {
+			socket.startHandshake();
+		} catch (IOException e) {
+			tls.handshakeFailed();
+			throw e;
+		}
+		tls.handshakeFinished(client, socket.getSession());
+	}
+
+	/**
+	 * Handle a line from a client that hasn't registered yet. If its the NICK
+	 * line the client is registered and welcomed
+	 * @return True if the client is now registered
+	 */
+	protected boolean handleNickLine(Client client, IrcMessage message) throws IOException {
+		metrics.lineIn(message);
+		if (!message.isCommand(nickCommand) || message.getNumParams() == 0)
+			return false;
+		registerNick(client, message.getParam(0).trim());
+		client.log("Nick recieved, continuing");
+
+		client.log("Sending that client has connected");
+		//Write line saying client has connected to this IRC server
+		sendToClient(client, ":" + serverAddress + " 004 " + serverAddress + " jmeter-ircd-basic-0.1 ov b");
+		return true;
+	}
+
+	/**
+	 * Handle a line from a registered client, independent of how it was read.
+	 * The message is only valid for the duration of the call
+	 * @param receivedNanos When the line was read off the socket
+	 */
+	protected void handleLine(Client client, IrcMessage message, long receivedNanos) throws IOException {
+		metrics.lineIn(message);
+		FlightRecorderEvents.lineReceived(client, message, receivedNanos);
+		SessionRecorder curRecorder = recorder;
+		if (curRecorder != null)
+			curRecorder.recordReceived(client, message);
+		//See if there are any wait requests on this
+		if (pendingRequests.dispatch(message, receivedNanos, client))
+			return;
+		if (message.isCommand(joinCommand) && message.getNumParams() > 0)
+			for (String curChannel : message.getParam(0).split(","))
+				joinChannel(client, curChannel);
+		else if (message.isCommand(partCommand) && message.getNumParams() > 0)
+			for (String curChannel : message.getParam(0).split(","))
+				partChannel(client, curChannel);
+		else if (message.isCommand(pingCommand))
+			sendToClient(client, ":" + serverAddress + " PONG " + serverAddress + " :" + (message.getNumParams() > 0 ? message.getParam(0) : serverAddress));
+		else {
+			metrics.unmatchedLine();
+			FlightRecorderEvents.lineUnmatched(client, message);
+			log.warn("Client # " + client.getClientNum() + "Line not matched - " + message);
+		}
+	}
+
+	/**
+	 * Add the client to the channel, telling every member and sending the
+	 * joiner the names list. Joining a channel the client is already in just
+	 * echos the JOIN back
+	 */
+	protected void joinChannel(Client client, String name) throws IOException {
+		Channel channel = getChannel(name);
+		byte[] joinLine = (":" + client.getHostmask() + " JOIN :" + channel.getName() + "\r\n").getBytes(charset);
+		if (!channel.join(client)) {
+			sendToClient(client, joinLine);
+			return;
+		}
+		client.getChannels().add(channel);
+		broadcast(channel, joinLine, null);
+
+		//Names list, connected clients then simulated users
+		String namesStart = ":" + serverAddress + " 353 " + client.getInitNick() + " = " + channel.getName() + " :";
+		StringBuilder names = new StringBuilder(namesStart);
+		int namesInLine = 0;
+		List<String> allNames = new ArrayList<String>(channel.getMemberCount() + channel.getSimulatedUsers().size());
+		for (Client curMember : channel.getMembers())
+			allNames.add(curMember.getInitNick());
+		allNames.addAll(channel.getSimulatedUsers());
+		for (String curName : allNames) {
+			if (namesInLine > 0)
+				names.append(' ');
+			names.append(curName);
+			if (++namesInLine == namesPerLine) {
+				sendToClient(client, names.toString());
+				names.setLength(namesStart.length());
+				namesInLine = 0;
+			}
+		}
+		if (namesInLine > 0)
+			sendToClient(client, names.toString());
+		sendToClient(client, ":" + serverAddress + " 366 " + client.getInitNick() + " " + channel.getName() + " :End of /NAMES list.");
+	}
+
+	protected void partChannel(Client client, String name) throws IOException {
+		Channel channel = channels.get(name.toLowerCase());
+		if (channel == null || !channel.isMember(client))
+			return;
+		byte[] partLine = (":" + client.getHostmask() + " PART " + channel.getName() + "\r\n").getBytes(charset);
+		//Leaver gets it too
+		broadcast(channel, partLine, null);
+		channel.part(client);
+		client.getChannels().remove(channel);
+	}
+
+	/**
+	 * Get the channel with the given name, creating it if it doesn't exist
+	 */
+	public Channel getChannel(String name) {
+		String key = name.toLowerCase();
+		Channel channel = channels.get(key);
+		if (channel == null) {
+			Channel existing = channels.putIfAbsent(key, channel = new Channel(name));
+			if (existing != null)
+				channel = existing;
+		}
+		return channel;
+	}
+
+	public Collection<Channel> getChannels() {
+		return Collections.unmodifiableCollection(channels.values());
+	}
+
+	/**
+	 * Remove a simulated user from every channel, eg when it QUITs
+	 */
+	public void removeSimulatedUser(String nick) {
+		for (Channel curChannel : channels.values())
+			curChannel.removeSimulatedUser(nick);
+	}
+
+	/**
+	 * Send an encoded line to every client in the channel. Every member shares
+	 * the one array, only the small per client buffer wrapping it is new.
+	 * Members that disconnect midway are skipped
+	 * @param request The request the line is for, or null
+	 * @return Number of members the line was queued for
+	 */
+	public int broadcast(Channel channel, byte[] line, PendingRequest request) {
+		recordSent(line);
+		int delivered = 0;
+		for (Client curMember : channel.members)
+			try {
+				curMember.send(line, request);
+				FlightRecorderEvents.lineSent(curMember, line, request);
+				delivered++;
+			} catch (IOException e) {
+				curMember.log("Skipping disconnected member of " + channel.getName());
+			}
+		broadcastLines.incrementAndGet();
+		broadcastDeliveries.addAndGet(delivered);
+		return delivered;
+	}
+
+	/**
+	 * Broadcast a started request's line to the channel
+	 * @throws IOException If the channel has no connected members
+	 */
+	public void broadcast(Channel channel, PendingRequest request) throws IOException {
+		if (broadcast(channel, request.getLine(), request) == 0)
+			throw new IOException("No clients in " + channel.getName());
+	}
+
+	/**
+	 * @return Lines broadcast and total deliveries since the last test ended
+	 */
+	public long[] getBroadcastStats() {
+		return new long[]{broadcastLines.get(), broadcastDeliveries.get()};
+	}
+
+	/**
+	 * @param timeoutMillis How long to wait for a reply, 0 to wait forever
+	 */
+	public void addRequest(PendingRequest request, long timeoutMillis) {
+		pendingRequests.register(request, timeoutMillis);
+	}
+
+	public void removeRequest(PendingRequest request) {
+		pendingRequests.remove(request);
+	}
+
+	protected void addClient(Client client) {
+		if (floodRate > 0)
+			client.setFlood(new FloodControl(floodRate, floodBurst, excessFloodBytes, floodStats));
+		clients.add(client);
+		updateGui();
+	}
+
+	/**
+	 * Register the client under its nick, making it selectable by samplers
+	 */
+	protected void registerNick(Client client, String nick) {
+		client.setInitNick(nick);
+		clientsByNick.put(nick.toLowerCase(), client);
+		clientList.add(client);
+		//Forgotten while registering
+		if (!clients.contains(client)) {
+			clientList.remove(client);
+			clientsByNick.remove(nick.toLowerCase(), client);
+			return;
+		}
+		client.log("Registered with nick " + nick);
 	}
 
 	public void forgetClient(Client client) {
+		if (!clients.remove(client))
+			//Already forgotten
+			return;
 		client.log("Forgetting about client #" + client.getClientNum());
+		clientList.remove(client);
+		for (Channel curChannel : client.getChannels())
+			curChannel.part(client);
+		if (client.getInitNick() != null)
+			clientsByNick.remove(client.getInitNick().toLowerCase(), client);
+		updateGui();
 		try {
-			client.getIn().close();
-			client.getOut().close();
+			client.close();
 		} catch (IOException ex) {
 			log.error("Client #" + client.getClientNum() + " raised exception when disconnecting", ex);
-		} finally {
-			client = null;
 		}
 	}
 
+	protected void updateGui() {
+		if (gui != null)
+			gui.updateClientsConnected(clients.size());
+	}
+
+	public Map<String, Long> getTimeoutCounts() {
+		return pendingRequests.getTimeoutCounts();
+	}
+
+	/**
+	 * @return Number of replies that didn't match their reply rules so far by
+	 * event type
+	 */
+	public Map<String, Long> getWrongReplyCounts() {
+		return pendingRequests.getWrongReplyCounts();
+	}
+
+	/**
+	 * How often reply latency histograms are logged while running, 0 to only
+	 * log them when the test ends
+	 */
+	public void setHistogramIntervalSeconds(int intervalSeconds) {
+		latencies.setIntervalSeconds(intervalSeconds);
+	}
+
+	public int getHistogramIntervalSeconds() {
+		return latencies.getIntervalSeconds();
+	}
+
 	public void clearSamplers() {
-		samplers.clear();
+		pendingRequests.clear();
+		latencies.testEnded();
+		long lines = broadcastLines.getAndSet(0);
+		long deliveries = broadcastDeliveries.getAndSet(0);
+		if (lines > 0)
+			log.info("Broadcast " + lines + " lines with " + deliveries + " deliveries, average fan out " + deliveries / lines);
+		if (recorder != null)
+			recorder.flush();
+		if (tls != null)
+			log.info("TLS " + tls.summary());
+		if (floodRate > 0)
+			log.info("Flood control " + floodStats.summary());
+		//Simulated users are per test, connected clients stay joined
+		for (Channel curChannel : channels.values())
+			curChannel.clearSimulatedUsers();
 	}
 
 	public void close() throws IOException {
 		closedGood = true;
+		latencies.close();
+		metrics.unregister();
 		//Close down all of the clients
-		forgetClient(client);
-		if (server.isBound())
+		for (Client curClient : clients)
+			forgetClient(curClient);
+		if (server != null && server.isBound())
 			server.close();
+		setRecordFile(null);
 	}
 
-	public void sendToClient(String line) throws IOException {
-		synchronized (client.getOut()) {
-			client.getOut().write(line + "\r\n");
-			client.getOut().flush();
+	/**
+	 * Start recording traffic to the file in ReplayLog's format, replacing any
+	 * current recording
+	 * @param path The file to append to, null or empty to stop recording
+	 */
+	public synchronized void setRecordFile(String path) throws IOException {
+		SessionRecorder oldRecorder = recorder;
+		recorder = path == null || path.trim().length() == 0 ? null : new SessionRecorder(path.trim());
+		if (oldRecorder != null)
+			oldRecorder.close();
+		if (recorder != null)
+			log.info("Recording traffic to " + recorder.getPath());
+	}
+
+	/**
+	 * Serve TLS with the key in the keystore, generating a self signed one if
+	 * it doesn't exist. Takes effect when init() is called
+	 * @param keystorePath The keystore, null or empty to serve plaintext
+	 */
+	public void setTls(String keystorePath, String password) throws IOException {
+		tls = keystorePath == null || keystorePath.trim().length() == 0 ? null : new TlsSupport(keystorePath.trim(), password);
+	}
+
+	/**
+	 * Check replies against the rules in the file, see ReplyRule for its
+	 * format
+	 * @param path The rules file, null or empty to accept any reply
+	 */
+	public void setReplyRules(String path) throws IOException {
+		List<ReplyRule> rules = path == null || path.trim().length() == 0 ? Collections.<ReplyRule>emptyList() : ReplyRule.load(path.trim());
+		pendingRequests.setReplyRules(rules);
+		if (!rules.isEmpty())
+			log.info("Checking replies against " + rules.size() + " reply rules from " + path.trim());
+	}
+
+	protected void recordSent(byte[] line) {
+		SessionRecorder curRecorder = recorder;
+		if (curRecorder != null)
+			curRecorder.recordSent(line);
+	}
+
+	public void sendToClient(Client client, String line) throws IOException {
+		sendToClient(client, (line + "\r\n").getBytes(charset));
+	}
+
+	/**
+	 * Send an already encoded line including the CRLF. The client takes
+	 * ownership of the array
+	 */
+	public void sendToClient(Client client, byte[] line) throws IOException {
+		recordSent(line);
+		client.send(line, null);
+		FlightRecorderEvents.lineSent(client, line, null);
+	}
+
+	/**
+	 * Send a started request's line, timestamping it as it is queued and
+	 * written
+	 */
+	public void sendToClient(Client client, PendingRequest request) throws IOException {
+		recordSent(request.getLine());
+		client.send(request.getLine(), request);
+		FlightRecorderEvents.lineSent(client, request.getLine(), request);
+	}
+
+	/**
+	 * Pick the client a sampler should talk to
+	 * @param selection How to pick the client
+	 * @param botNumber The sampler's bot number, used for sticky selection
+	 * @param nick The registered nick to look for when selecting by nick
+	 * @return The client or null if there isn't a matching client connected
+	 */
+	public Client selectClient(ClientSelection selection, int botNumber, String nick) {
+		if (selection == ClientSelection.NICK)
+			return nick == null ? null : clientsByNick.get(nick.toLowerCase());
+		//Retry if a client disconnects between reading the size and the get
+		while (true) {
+			int size = clientList.size();
+			if (size == 0)
+				return null;
+			int index = selection == ClientSelection.BOT_NUMBER ? botNumber : roundRobinCounter.getAndIncrement();
+			try {
+				return clientList.get((index & Integer.MAX_VALUE) % size);
+			} catch (IndexOutOfBoundsException e) {
+				//Client list shrank, try again
+			}
 		}
 	}
 
@@ -171,34 +755,204 @@ public class IrcServer {
 		return port;
 	}
 
-	public Client getClient() {
-		return client;
+	public Set<Client> getClients() {
+		return Collections.unmodifiableSet(clients);
+	}
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * @return Number of connected clients that sent their nick, ie the ones
+	 * samplers can talk to
+	 */
+	public int getRegisteredClientCount() {
+		return clientList.size();
 	}
 
+	/**
+	 * Wait for init() to start accepting connections
+	 * @return True if the server is listening
+	 */
+	public boolean awaitListening(long timeoutMillis) throws InterruptedException {
+		return listening.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wait until at least count clients have connected and sent their nick
+	 * @return True if enough clients registered before the timeout
+	 */
+	public boolean awaitClients(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (getRegisteredClientCount() < count) {
+			if (System.currentTimeMillis() >= deadline)
+				return false;
+			Thread.sleep(50);
+		}
+		return true;
+	}
+
+	/**
+	 * A connected bot, independent of the engine serving it
+	 */
 	@Data
-	protected static class Client implements Comparable<Client> {
-		protected Socket socket;
-		protected BufferedReader in;
-		protected BufferedWriter out;
+	protected abstract static class Client implements Comparable<Client> {
+		protected static final AtomicInteger totalClients = new AtomicInteger();
 		protected String initNick;
-		protected static int totalClients = 0;
 		protected int clientNum;
+		/**
+		 * When the connection was accepted, in wall clock and nano time
+		 */
+		protected final transient long acceptTime = System.currentTimeMillis();
+		protected final transient long acceptNanos = System.nanoTime();
+		/**
+		 * Null unless the server throttles clients
+		 */
+		protected transient FloodControl flood;
+		/**
+		 * Cached so recording a latency doesn't allocate
+		 */
+		protected transient String histogramName;
+		/**
+		 * Channels the client has joined
+		 */
+		protected final transient Set<Channel> channels = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
 
-		public Client(Socket socket) throws IOException {
-			this.socket = socket;
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-			totalClients++;
-			clientNum = totalClients;
+		public Client() {
+			clientNum = totalClients.incrementAndGet();
+		}
+
+		/**
+		 * Send a line (without the trailing CRLF) to the client
+		 */
+		public void send(String line) throws IOException {
+			send((line + "\r\n").getBytes(charset), null);
 		}
 
+		/**
+		 * Send an encoded line including the trailing CRLF. The array must not
+		 * be modified afterwards
+		 * @param request The request the line is for, or null
+		 */
+		public abstract void send(byte[] line, PendingRequest request) throws IOException;
+
+		public abstract void close() throws IOException;
+
+		/**
+		 * @return Lines queued for the client but not written yet. Counts the
+		 * queue, so only for monitoring
+		 */
+		public abstract int getOutboundDepth();
+
 		public void log(String line) {
 			log.debug(clientNum + ": " + line);
 		}
 
+		public String getHostmask() {
+			return initNick + "!~client@clients.jmeter";
+		}
+
+		/**
+		 * @return Name of this client's latency histogram
+		 */
+		public String getHistogramName() {
+			//Only called once registered, so the nick is known
+			if (histogramName == null)
+				histogramName = "#" + clientNum + " " + initNick;
+			return histogramName;
+		}
+
 		@Override
 		public int compareTo(Client o) {
 			return getClientNum() - o.getClientNum();
 		}
 	}
+
+	/**
+	 * Client served by a blocking socket with its own reader and writer threads
+	 */
+	@Getter
+	protected static class SocketClient extends Client {
+		protected Socket socket;
+		protected LineReader in;
+		protected OutputStream out;
+		/**
+		 * Lines waiting for the writer thread. Senders never block on the socket
+		 */
+		protected final ConcurrentLinkedQueue<OutboundLine> outbound = new ConcurrentLinkedQueue<OutboundLine>();
+		protected Thread writerThread;
+		protected final AtomicBoolean writerParked = new AtomicBoolean();
+		protected volatile boolean closed = false;
+		protected volatile long linesWritten = 0;
+		protected volatile long batchesWritten = 0;
+
+		public SocketClient(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new LineReader(socket.getInputStream());
+			out = socket.getOutputStream();
+		}
+
+		protected void setWriterThread(Thread writerThread) {
+			this.writerThread = writerThread;
+		}
+
+		@Override
+		public void send(byte[] line, PendingRequest request) throws IOException {
+			if (closed)
+				throw new IOException("Client #" + clientNum + " is disconnected");
+			outbound.add(new OutboundLine(ByteBuffer.wrap(line), request));
+			if (writerParked.get() && writerParked.compareAndSet(true, false))
+				LockSupport.unpark(writerThread);
+		}
+
+		@Override
+		public int getOutboundDepth() {
+			return outbound.size();
+		}
+
+		/**
+		 * Called by the writer thread to wait until there is something to send
+		 */
+		protected void awaitOutbound() {
+			writerParked.set(true);
+			//Recheck after publishing the flag so a concurrent send isn't missed
+			if (outbound.isEmpty() && !closed)
+				LockSupport.park(this);
+			writerParked.set(false);
+		}
+
+		/**
+		 * Called by the writer thread to wait a limited time for the next line
+		 * @return The next line, or null if none was queued in time
+		 */
+		protected OutboundLine pollOutbound(long timeout, TimeUnit unit) {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			OutboundLine line;
+			long remaining;
+			while ((line = outbound.poll()) == null && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+				writerParked.set(true);
+				if (outbound.isEmpty() && !closed)
+					LockSupport.parkNanos(this, remaining);
+				writerParked.set(false);
+			}
+			return line;
+		}
+
+		/**
+		 * Only called by the writer thread
+		 */
+		protected void batchWritten(int lines) {
+			linesWritten += lines;
+			batchesWritten++;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			if (writerThread != null)
+				LockSupport.unpark(writerThread);
+			socket.close();
+		}
+	}
 }
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.IOException;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Owns the built in IRC server for the whole JVM. The GUI hands over the
+ * server it starts; in non-GUI and remote runs nothing has, so the first
+ * sampler to see testStarted() starts one configured from JMeter properties
+ * and it is shut down again at testEnded(). Started from properties the server
+ * can be sharded: several independent servers, each with its own event loops,
+ * clients and pending requests, with every sampler talking to the one its bot
+ * number hashes to. Bots connecting to a shared port are spread over the
+ * shards by the kernel
+ * @author lordquackstar
+ */
+public class IrcServerManager {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	public static final String portProperty = "irc.server.port";
+	public static final String engineProperty = "irc.server.engine";
+	public static final String eventLoopsProperty = "irc.server.eventLoops";
+	public static final String batchBytesProperty = "irc.server.batchBytes";
+	public static final String lingerMicrosProperty = "irc.server.lingerMicros";
+	public static final String histogramIntervalProperty = "irc.server.histogramInterval";
+	/**
+	 * File to record the server's traffic to for later replay
+	 */
+	public static final String recordFileProperty = "irc.server.recordFile";
+	/**
+	 * Number of in process loopback bots to start, for measuring the harness
+	 * without a real bot
+	 */
+	public static final String loopbackBotsProperty = "irc.server.loopbackBots";
+	/**
+	 * Serve TLS instead of plaintext, with the key in the keystore. A self
+	 * signed one is generated if the keystore doesn't exist
+	 */
+	public static final String tlsProperty = "irc.server.tls";
+	/**
+	 * Flood control, lines per second each client is handled at after a
+	 * burst, 0 for none. Clients with more than excessFlood bytes waiting are
+	 * disconnected, 0 to never disconnect
+	 */
+	public static final String floodRateProperty = "irc.server.floodRate";
+	public static final String floodBurstProperty = "irc.server.floodBurst";
+	public static final String excessFloodProperty = "irc.server.excessFlood";
+	/**
+	 * File of rules replies are checked against, see ReplyRule
+	 */
+	public static final String replyRulesProperty = "irc.server.replyRules";
+	public static final String keystoreProperty = "irc.server.keystore";
+	public static final String keystorePasswordProperty = "irc.server.keystorePassword";
+	/**
+	 * Number of independent servers to start. With more than one the event
+	 * loops setting is per shard
+	 */
+	public static final String shardsProperty = "irc.server.shards";
+	/**
+	 * Give each shard its own port, counting up from the port, instead of all
+	 * sharing it with SO_REUSEPORT. Used anyway if SO_REUSEPORT isn't supported
+	 */
+	public static final String shardPortsProperty = "irc.server.shardPorts";
+	/**
+	 * Number of bots that must connect before the test is let go
+	 */
+	public static final String awaitClientsProperty = "irc.server.awaitClients";
+	public static final String awaitClientsTimeoutProperty = "irc.server.awaitClientsTimeout";
+	/**
+	 * Every shard, or just the one server if it isn't sharded. Null when
+	 * there is no server
+	 */
+	protected static volatile IrcServer[] shards;
+	/**
+	 * True if the shards were started here for the test, instead of by the GUI
+	 */
+	protected static boolean testOwned = false;
+
+	/**
+	 * @return The server, or the first shard of a sharded server
+	 */
+	public static IrcServer getServer() {
+		IrcServer[] curShards = shards;
+		return curShards == null ? null : curShards[0];
+	}
+
+	/**
+	 * @return The shard the bot's sampler talks to. Bot numbers are handed out
+	 * in sequence, so their own hash spreads samplers evenly
+	 */
+	public static IrcServer getServer(int botNumber) {
+		IrcServer[] curShards = shards;
+		if (curShards == null)
+			return null;
+		return curShards[(botNumber & Integer.MAX_VALUE) % curShards.length];
+	}
+
+	/**
+	 * Replace the server, used by the GUI. The old one is closed by the caller
+	 */
+	public static synchronized void setServer(IrcServer newServer) {
+		shards = newServer == null ? null : new IrcServer[]{newServer};
+		testOwned = false;
+	}
+
+	/**
+	 * Start a server from JMeter properties if there isn't one already.
+	 * Blocks until its listening and, if configured, enough bots connected
+	 */
+	public static synchronized void testStarted() {
+		if (shards != null)
+			return;
+		int port = JMeterUtils.getPropDefault(portProperty, 6667);
+		ServerEngine engine = ServerEngine.fromString(JMeterUtils.getPropDefault(engineProperty, ServerEngine.BLOCKING.name()));
+		int numShards = Math.max(1, JMeterUtils.getPropDefault(shardsProperty, 1));
+		boolean shardPorts = JMeterUtils.getPropDefault(shardPortsProperty, false);
+		if (numShards > 1 && !shardPorts && !ReusePort.isSupported()) {
+			log.warn("SO_REUSEPORT isn't supported, giving each shard its own port starting at " + port);
+			shardPorts = true;
+		}
+		int eventLoops = JMeterUtils.getPropDefault(eventLoopsProperty, Math.max(1, Runtime.getRuntime().availableProcessors() / numShards));
+
+		IrcServer[] newShards = new IrcServer[numShards];
+		for (int i = 0; i < numShards; i++) {
+			newShards[i] = createServer(engine, shardPorts ? port + i : port, eventLoops, numShards > 1 ? "." + i : "");
+			if (newShards[i] != null && numShards > 1) {
+				newShards[i].setShard(i);
+				newShards[i].setReusePort(!shardPorts);
+			}
+			if (newShards[i] != null)
+				log.info("Starting " + engine + (newShards[i].getTls() != null ? " TLS" : "") + " IRC server on port " + newShards[i].getPort() + (numShards > 1 ? " shard " + i : "") + " for test");
+			if (newShards[i] == null || !startServer(newShards[i])) {
+				closeAll(newShards);
+				return;
+			}
+		}
+		if (numShards > 1)
+			log.info("Started " + numShards + " " + engine + " shards " + (shardPorts ? "on ports " + port + "-" + (port + numShards - 1) : "sharing port " + port) + " with " + eventLoops + " event loops each");
+		shards = newShards;
+		testOwned = true;
+
+		//Loopback bots are split evenly, though with a shared port the kernel picks their shard
+		int loopbackBots = JMeterUtils.getPropDefault(loopbackBotsProperty, 0);
+		for (int i = 0; i < numShards; i++) {
+			int shardBots = loopbackBots / numShards + (i < loopbackBots % numShards ? 1 : 0);
+			if (shardBots > 0)
+				try {
+					LoopbackBot.startGroup(newShards[i], shardBots, newShards[i].getHistogramIntervalSeconds());
+				} catch (IOException ex) {
+					log.error("Could not start loopback bots", ex);
+				}
+		}
+
+		int awaitClients = JMeterUtils.getPropDefault(awaitClientsProperty, 0);
+		if (awaitClients > 0)
+			try {
+				long timeout = JMeterUtils.getPropDefault(awaitClientsTimeoutProperty, 60000L);
+				log.info("Waiting up to " + timeout + "ms for " + awaitClients + " bots to connect and register");
+				long deadline = System.currentTimeMillis() + timeout;
+				while (getRegisteredClientCount(newShards) < awaitClients && System.currentTimeMillis() < deadline)
+					Thread.sleep(50);
+				if (getRegisteredClientCount(newShards) < awaitClients)
+					log.warn("Only " + getRegisteredClientCount(newShards) + " of " + awaitClients + " bots registered, starting anyway");
+				for (IrcServer curShard : newShards)
+					if (numShards > 1 && curShard.getRegisteredClientCount() == 0)
+						log.warn("No bots registered with shard " + curShard.getShard() + ", its samplers will fail");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+	}
+
+	/**
+	 * JMeterUtils has no double version. Like the others, a bad value falls back
+	 * to the default
+	 */
+	protected static double getPropDefault(String property, double defaultValue) {
+		String value = JMeterUtils.getPropDefault(property, String.valueOf(defaultValue)).trim();
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException ex) {
+			log.warn("Invalid " + property + " \"" + value + "\", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Create a server configured from JMeter properties
+	 * @param recordSuffix Added to the record file, so shards don't share one
+	 * @return The server or null if it couldn't be set up
+	 */
+	protected static IrcServer createServer(ServerEngine engine, int port, int eventLoops, String recordSuffix) {
+		IrcServer newServer = engine.createServer(port, null, eventLoops);
+		newServer.setMaxBatchBytes(JMeterUtils.getPropDefault(batchBytesProperty, 16 * 1024));
+		newServer.setLingerMicros(JMeterUtils.getPropDefault(lingerMicrosProperty, 0L));
+		newServer.setHistogramIntervalSeconds(JMeterUtils.getPropDefault(histogramIntervalProperty, 0));
+		newServer.setFloodRate(getPropDefault(floodRateProperty, 0));
+		newServer.setFloodBurst(JMeterUtils.getPropDefault(floodBurstProperty, 5));
+		newServer.setExcessFloodBytes(JMeterUtils.getPropDefault(excessFloodProperty, 0));
+		String recordFile = JMeterUtils.getPropDefault(recordFileProperty, "");
+		try {
+			newServer.setRecordFile(recordFile.trim().length() == 0 ? recordFile : recordFile.trim() + recordSuffix);
+		} catch (IOException ex) {
+			log.error("Could not record traffic, continuing without recording", ex);
+		}
+		try {
+			newServer.setReplyRules(JMeterUtils.getPropDefault(replyRulesProperty, ""));
+		} catch (IOException ex) {
+			log.error("Could not load reply rules, continuing without checking replies", ex);
+		}
+		if (JMeterUtils.getPropDefault(tlsProperty, false))
+			try {
+				newServer.setTls(JMeterUtils.getPropDefault(keystoreProperty, TlsSupport.defaultKeystore), JMeterUtils.getPropDefault(keystorePasswordProperty, TlsSupport.defaultKeystorePassword));
+			} catch (IOException ex) {
+				log.error("Could not set up TLS, built in IRC server not started, samples will fail", ex);
+				newServer.getMetrics().unregister();
+				return null;
+			}
+		return newServer;
+	}
+
+	/**
+	 * Start accepting on a new thread
+	 * @return True once it is listening, false if it couldn't start
+	 */
+	protected static boolean startServer(final IrcServer newServer) {
+		final int port = newServer.getPort();
+		Thread acceptThread = new Thread("IrcServer-Acceptor-" + port + (newServer.getShard() >= 0 ? "-" + newServer.getShard() : "")) {
+			@Override
+			public void run() {
+				try {
+					newServer.init();
+				} catch (IOException ex) {
+					if (!newServer.isClosedGood())
+						log.error("Built in IRC server on port " + port + " failed", ex);
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		try {
+			while (!newServer.awaitListening(100))
+				if (!acceptThread.isAlive()) {
+					log.error("Built in IRC server on port " + port + " did not start, samples will fail");
+					return false;
+				}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	protected static int getRegisteredClientCount(IrcServer[] servers) {
+		int count = 0;
+		for (IrcServer curServer : servers)
+			count += curServer.getRegisteredClientCount();
+		return count;
+	}
+
+	protected static void closeAll(IrcServer[] servers) {
+		for (IrcServer curServer : servers)
+			if (curServer != null)
+				try {
+					curServer.close();
+				} catch (IOException ex) {
+					log.error("Could not close built in IRC server", ex);
+				}
+	}
+
+	/**
+	 * Reset the servers' per test state, closing them if they were started
+	 * for the test
+	 */
+	public static synchronized void testEnded() {
+		IrcServer[] curShards = shards;
+		if (curShards == null)
+			return;
+		for (IrcServer curShard : curShards)
+			curShard.clearSamplers();
+		if (!testOwned)
+			return;
+		log.info("Stopping IRC server on port " + curShards[0].getPort() + (curShards.length > 1 ? " and its other " + (curShards.length - 1) + " shards" : ""));
+		closeAll(curShards);
+		shards = null;
+		testOwned = false;
+	}
+}
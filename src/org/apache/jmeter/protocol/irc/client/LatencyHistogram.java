@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free, mergeable high dynamic range histogram of nanosecond latencies.
+ * Values are bucketed log-linearly like HdrHistogram: each power of 2 range is
+ * split into 128 linear sub buckets, giving better than 1% precision from
+ * nanoseconds to hours in a fixed 37KB of counters
+ * @author lordquackstar
+ */
+public class LatencyHistogram {
+	protected static final int subBucketBits = 8;
+	protected static final int subBucketCount = 1 << subBucketBits;
+	protected static final int subBucketHalf = subBucketCount >> 1;
+	/**
+	 * Largest trackable value, about 2.4 hours in nanoseconds. Anything
+	 * larger is clamped
+	 */
+	public static final long maxValue = (1L << 43) - 1;
+	protected static final int countsLength = indexOf(maxValue) + 1;
+	protected final AtomicLongArray counts = new AtomicLongArray(countsLength);
+	protected final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), maxValue);
+		counts.incrementAndGet(indexOf(value));
+		long curMax;
+		while (value > (curMax = max.get()) && !max.compareAndSet(curMax, value));
+	}
+
+	protected static int indexOf(long value) {
+		if (value < subBucketCount)
+			return (int) value;
+		int bucket = 63 - Long.numberOfLeadingZeros(value) - (subBucketBits - 1);
+		return bucket * subBucketHalf + (int) (value >>> bucket);
+	}
+
+	/**
+	 * @return The highest value that lands in the same bucket as index
+	 */
+	protected static long highestValueAt(int index) {
+		if (index < subBucketCount)
+			return index;
+		int bucket = (index >> (subBucketBits - 1)) - 1;
+		long subBucket = index - bucket * subBucketHalf;
+		return (subBucket << bucket) + (1L << bucket) - 1;
+	}
+
+	/**
+	 * Add all of other's counts to this histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < countsLength; i++) {
+			long count = other.counts.get(i);
+			if (count != 0)
+				counts.addAndGet(i, count);
+		}
+		long otherMax = other.max.get();
+		long curMax;
+		while (otherMax > (curMax = max.get()) && !max.compareAndSet(curMax, otherMax));
+	}
+
+	/**
+	 * Move everything recorded so far into a new histogram, leaving this one
+	 * empty. Values recorded concurrently end up in one or the other, never
+	 * both or neither
+	 */
+	public LatencyHistogram snapshotAndReset() {
+		LatencyHistogram snapshot = new LatencyHistogram();
+		for (int i = 0; i < countsLength; i++)
+			if (counts.get(i) != 0)
+				snapshot.counts.set(i, counts.getAndSet(i, 0));
+		snapshot.max.set(max.getAndSet(0));
+		return snapshot;
+	}
+
+	public long getTotalCount() {
+		long total = 0;
+		for (int i = 0; i < countsLength; i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile 0 to 100
+	 * @return The value at or below which the given percent of values fall
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getTotalCount();
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < countsLength; i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(highestValueAt(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * One line summary in microseconds
+	 */
+	public String summary() {
+		long total = getTotalCount();
+		if (total == 0)
+			return "count=0";
+		return String.format("count=%d p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus p99.99=%.1fus max=%.1fus",
+				total,
+				getValueAtPercentile(50) / 1000.0,
+				getValueAtPercentile(90) / 1000.0,
+				getValueAtPercentile(99) / 1000.0,
+				getValueAtPercentile(99.9) / 1000.0,
+				getValueAtPercentile(99.99) / 1000.0,
+				getMax() / 1000.0);
+	}
+}
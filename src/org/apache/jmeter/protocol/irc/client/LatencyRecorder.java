@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * In process reply latency histograms, one per event type (channelCommand,
+ * operatorBan, etc) and one per bot client. Recording is lock free; a
+ * background thread logs interval snapshots and everything is folded into
+ * cumulative histograms that are logged when the test ends, so accurate high
+ * percentiles don't require pushing every sample through JMeter listeners
+ * @author lordquackstar
+ */
+public class LatencyRecorder implements Runnable {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected final ConcurrentHashMap<String, LatencyHistogram> eventTypes = new ConcurrentHashMap<String, LatencyHistogram>();
+	protected final ConcurrentHashMap<String, LatencyHistogram> clients = new ConcurrentHashMap<String, LatencyHistogram>();
+	/**
+	 * Everything taken out of the live histograms so far this test. Only
+	 * touched while holding this
+	 */
+	protected final Map<String, LatencyHistogram> cumulativeEventTypes = new TreeMap<String, LatencyHistogram>();
+	protected final Map<String, LatencyHistogram> cumulativeClients = new TreeMap<String, LatencyHistogram>();
+	protected volatile long intervalMillis = 0;
+	protected Thread thread;
+
+	/**
+	 * @param intervalSeconds How often to log interval snapshots, 0 to only log
+	 * at test end
+	 */
+	public synchronized void setIntervalSeconds(int intervalSeconds) {
+		intervalMillis = intervalSeconds * 1000L;
+		if (intervalMillis > 0 && thread == null) {
+			thread = new Thread(this, "IrcServer-LatencyRecorder");
+			thread.setDaemon(true);
+			thread.start();
+		} else if (intervalMillis <= 0 && thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	public int getIntervalSeconds() {
+		return (int) (intervalMillis / 1000);
+	}
+
+	/**
+	 * Record a completed request's reply latency
+	 */
+	public void record(PendingRequest request, IrcServer.Client client) {
+		long nanos = request.getLatencyNanos();
+		getHistogram(eventTypes, request.getTemplate().getEventType()).record(nanos);
+		getHistogram(clients, client.getHistogramName()).record(nanos);
+	}
+
+	protected static LatencyHistogram getHistogram(ConcurrentMap<String, LatencyHistogram> histograms, String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram existing = histograms.putIfAbsent(name, histogram = new LatencyHistogram());
+			if (existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	@Override
+	public void run() {
+		long curInterval;
+		while ((curInterval = intervalMillis) > 0)
+			try {
+				Thread.sleep(curInterval);
+				dump("Interval", false);
+			} catch (InterruptedException e) {
+				return;
+			}
+	}
+
+	/**
+	 * Log cumulative histograms for the test and reset for the next one
+	 */
+	public void testEnded() {
+		dump("Test ended", true);
+	}
+
+	public void close() {
+		setIntervalSeconds(0);
+	}
+
+	/**
+	 * Move the live histograms into the cumulative ones, logging either the
+	 * interval just taken or the cumulative totals
+	 */
+	protected synchronized void dump(String title, boolean cumulative) {
+		Map<String, LatencyHistogram> intervalEventTypes = drain(eventTypes, cumulativeEventTypes);
+		Map<String, LatencyHistogram> intervalClients = drain(clients, cumulativeClients);
+		if (cumulative) {
+			log(title + " latency by event type", cumulativeEventTypes);
+			log(title + " latency by client", cumulativeClients);
+			cumulativeEventTypes.clear();
+			cumulativeClients.clear();
+		} else {
+			log(title + " latency by event type", intervalEventTypes);
+			log(title + " latency by client", intervalClients);
+		}
+	}
+
+	protected static Map<String, LatencyHistogram> drain(Map<String, LatencyHistogram> live, Map<String, LatencyHistogram> cumulative) {
+		Map<String, LatencyHistogram> interval = new TreeMap<String, LatencyHistogram>();
+		for (Map.Entry<String, LatencyHistogram> curEntry : live.entrySet()) {
+			LatencyHistogram snapshot = curEntry.getValue().snapshotAndReset();
+			if (snapshot.getTotalCount() == 0)
+				continue;
+			interval.put(curEntry.getKey(), snapshot);
+			LatencyHistogram total = cumulative.get(curEntry.getKey());
+			if (total == null)
+				cumulative.put(curEntry.getKey(), total = new LatencyHistogram());
+			total.add(snapshot);
+		}
+		return interval;
+	}
+
+	protected static void log(String title, Map<String, LatencyHistogram> histograms) {
+		if (histograms.isEmpty())
+			return;
+		StringBuilder message = new StringBuilder(title).append(":");
+		for (Map.Entry<String, LatencyHistogram> curEntry : histograms.entrySet())
+			message.append("\n\t").append(curEntry.getKey()).append(": ").append(curEntry.getValue().summary());
+		log.info(message.toString());
+	}
+
+	/**
+	 * @return A merged copy of this test's histograms by event type so far
+	 */
+	public synchronized Map<String, LatencyHistogram> getEventTypeHistograms() {
+		drain(eventTypes, cumulativeEventTypes);
+		Map<String, LatencyHistogram> copy = new TreeMap<String, LatencyHistogram>();
+		for (Map.Entry<String, LatencyHistogram> curEntry : cumulativeEventTypes.entrySet()) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.add(curEntry.getValue());
+			copy.put(curEntry.getKey(), histogram);
+		}
+		return copy;
+	}
+}
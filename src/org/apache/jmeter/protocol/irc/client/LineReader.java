@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * Frames CRLF (or bare LF) terminated lines out of a stream into a reusable
+ * byte buffer and parses them in place, replacing BufferedReader.readLine()
+ * so the blocking engine's read path doesn't decode or allocate per line
+ * @author lordquackstar
+ */
+public class LineReader {
+	/**
+	 * Longest line accepted before the client is considered broken
+	 */
+	public static final int maxLineLength = 64 * 1024;
+	protected final InputStream in;
+	protected byte[] buffer = new byte[8 * 1024];
+	/**
+	 * Start of the first unconsumed byte
+	 */
+	protected int position = 0;
+	protected int limit = 0;
+	/**
+	 * Bytes before this have already been checked for a LF
+	 */
+	protected int scanned = 0;
+	/**
+	 * When the read that completed the last line returned
+	 */
+	@Getter
+	protected long readNanos;
+
+	public LineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return True if a whole line is already buffered, so readLine() won't
+	 * block
+	 */
+	public boolean hasLine() {
+		for (; scanned < limit; scanned++)
+			if (buffer[scanned] == '\n')
+				return true;
+		return false;
+	}
+
+	/**
+	 * Read the next line into message, which is only valid until the next call
+	 * @return False at the end of the stream
+	 */
+	public boolean readLine(IrcMessage message) throws IOException {
+		while (true) {
+			for (int i = scanned; i < limit; i++)
+				if (buffer[i] == '\n') {
+					int end = i;
+					if (end > position && buffer[end - 1] == '\r')
+						end--;
+					message.parse(buffer, position, end);
+					position = scanned = i + 1;
+					return true;
+				}
+			scanned = limit;
+
+			//Make room for more
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				scanned -= position;
+				position = 0;
+			} else if (limit == buffer.length) {
+				if (buffer.length >= maxLineLength)
+					throw new IOException("Line longer than " + maxLineLength + " bytes");
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read == -1)
+				return false;
+			readNanos = System.nanoTime();
+			limit += read;
+		}
+	}
+}
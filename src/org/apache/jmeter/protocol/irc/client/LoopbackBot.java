@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.SocketFactory;
+import lombok.Getter;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Reference bot that echoes every line sent by a user straight back with zero
+ * think time, so the harness can be measured without a real bot. It registers
+ * with NICK like any bot and answers each line with a PRIVMSG to the line's
+ * channel (or the sender) containing the sender's nick, which completes the
+ * sampler's request. Replies are batched until no more input is waiting.
+ * <p>
+ * Start a group of them against the built in server in the same JVM with
+ * startGroup(), or from another JVM with
+ * <pre>java LoopbackBot [host] [port] [bots] [report seconds] [keystore]</pre>
+ * where giving the server's keystore connects with TLS
+ * @author lordquackstar
+ */
+public class LoopbackBot implements Runnable {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected static final byte[] privmsgStart = "PRIVMSG ".getBytes(IrcServer.charset);
+	public static final String nickPrefix = "loopbackBot";
+	protected final String host;
+	protected final int port;
+	@Getter
+	protected final String nick;
+	protected final SocketFactory socketFactory;
+	protected Socket socket;
+	/**
+	 * Replies waiting to be flushed
+	 */
+	protected final byte[] outBuffer = new byte[64 * 1024];
+	protected int outSize = 0;
+	/**
+	 * Only written by the bot's thread
+	 */
+	@Getter
+	protected volatile long linesRead = 0;
+	@Getter
+	protected volatile long linesEchoed = 0;
+	@Getter
+	protected volatile boolean running = true;
+
+	public LoopbackBot(String host, int port, String nick, SocketFactory socketFactory) {
+		this.host = host;
+		this.port = port;
+		this.nick = nick;
+		this.socketFactory = socketFactory;
+	}
+
+	@Override
+	public void run() {
+		try {
+			socket = socketFactory.createSocket(host, port);
+			socket.setTcpNoDelay(true);
+			LineReader in = new LineReader(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(("NICK " + nick + "\r\n").getBytes(IrcServer.charset));
+			out.flush();
+
+			IrcMessage message = new IrcMessage();
+			while (in.readLine(message)) {
+				linesRead++;
+				if (echo(message, out))
+					linesEchoed++;
+				//Flush before blocking for more input
+				if (outSize > 0 && !in.hasLine() && socket.getInputStream().available() == 0)
+					flush(out);
+			}
+		} catch (IOException ex) {
+			if (running)
+				log.debug(nick + " disconnected", ex);
+		} finally {
+			running = false;
+			close();
+		}
+	}
+
+	/**
+	 * Queue the reply to a line from a user, ignoring lines from the server
+	 * @return True if the line was echoed
+	 */
+	protected boolean echo(IrcMessage message, OutputStream out) throws IOException {
+		byte[] line = message.getBuffer();
+		int nickEnd = -1;
+		for (int i = message.getPrefixStart(); i < message.getPrefixEnd(); i++)
+			if (line[i] == '!') {
+				nickEnd = i;
+				break;
+			}
+		if (nickEnd == -1)
+			return false;
+
+		//Reply to the channel if there is one, otherwise to the sender
+		int targetStart = message.getPrefixStart();
+		int targetEnd = nickEnd;
+		if (message.getNumParams() > 0) {
+			int paramStart = message.getParamStart(0);
+			if (paramStart < message.getParamEnd(0) && (line[paramStart] == '#' || line[paramStart] == '&')) {
+				targetStart = paramStart;
+				targetEnd = message.getParamEnd(0);
+			}
+		}
+		int nickLength = nickEnd - message.getPrefixStart();
+		int length = privmsgStart.length + targetEnd - targetStart + 2 + nickLength + 2;
+		if (outSize + length > outBuffer.length)
+			flush(out);
+		put(privmsgStart, 0, privmsgStart.length);
+		put(line, targetStart, targetEnd - targetStart);
+		outBuffer[outSize++] = ' ';
+		outBuffer[outSize++] = ':';
+		put(line, message.getPrefixStart(), nickLength);
+		outBuffer[outSize++] = '\r';
+		outBuffer[outSize++] = '\n';
+		return true;
+	}
+
+	protected void put(byte[] src, int start, int length) {
+		System.arraycopy(src, start, outBuffer, outSize, length);
+		outSize += length;
+	}
+
+	protected void flush(OutputStream out) throws IOException {
+		out.write(outBuffer, 0, outSize);
+		outSize = 0;
+	}
+
+	public void close() {
+		running = false;
+		try {
+			if (socket != null)
+				socket.close();
+		} catch (IOException ex) {
+			log.debug("Could not close " + nick, ex);
+		}
+	}
+
+	/**
+	 * Start count bots on their own threads once the server is listening.
+	 * Returns straight away
+	 * @param reportSeconds How often to log lines per second, 0 to only log
+	 * when the bots stop
+	 */
+	public static Group startGroup(final IrcServer server, int count, int reportSeconds) throws IOException {
+		//Speak TLS if the server does, trusting its certificate
+		SocketFactory socketFactory = server.getTls() != null ? server.getTls().getClientContext().getSocketFactory() : SocketFactory.getDefault();
+		final Group group = new Group("127.0.0.1", server.getPort(), count, reportSeconds, socketFactory);
+		Thread starter = new Thread("IrcServer-LoopbackStarter") {
+			@Override
+			public void run() {
+				try {
+					while (!server.awaitListening(100))
+						if (server.isClosedGood())
+							return;
+					group.start();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		starter.setDaemon(true);
+		starter.start();
+		return group;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = args.length > 0 ? args[0] : "127.0.0.1";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 6667;
+		int count = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		int reportSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		SocketFactory socketFactory = SocketFactory.getDefault();
+		if (args.length > 4) {
+			if (!new File(args[4]).exists())
+				throw new IllegalArgumentException("Keystore " + args[4] + " doesn't exist");
+			socketFactory = new TlsSupport(args[4], TlsSupport.defaultKeystorePassword).getClientContext().getSocketFactory();
+		}
+		Group group = new Group(host, port, count, reportSeconds, socketFactory);
+		group.start();
+		group.awaitStopped();
+	}
+
+	/**
+	 * Bots started together, reported on together
+	 */
+	public static class Group implements Runnable {
+		protected final List<LoopbackBot> bots = new ArrayList<LoopbackBot>();
+		protected final int reportSeconds;
+		protected final List<Thread> threads = new ArrayList<Thread>();
+		/**
+		 * Lines echoed by each bot at the last report
+		 */
+		protected long[] lastEchoed;
+		protected long lastReportNanos;
+		protected long startNanos;
+
+		public Group(String host, int port, int count, int reportSeconds, SocketFactory socketFactory) {
+			for (int i = 0; i < count; i++)
+				bots.add(new LoopbackBot(host, port, nickPrefix + i, socketFactory));
+			this.reportSeconds = reportSeconds;
+			lastEchoed = new long[count];
+		}
+
+		public synchronized void start() {
+			log.info("Starting " + bots.size() + " loopback bots");
+			startNanos = lastReportNanos = System.nanoTime();
+			for (LoopbackBot curBot : bots) {
+				Thread thread = new Thread(curBot, "IrcServer-" + curBot.getNick());
+				thread.setDaemon(true);
+				thread.start();
+				threads.add(thread);
+			}
+			Thread reporter = new Thread(this, "IrcServer-LoopbackReporter");
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				long intervalMillis = reportSeconds > 0 ? reportSeconds * 1000L : 1000;
+				while (isRunning()) {
+					Thread.sleep(intervalMillis);
+					if (reportSeconds > 0)
+						report(false);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			report(true);
+		}
+
+		public boolean isRunning() {
+			for (LoopbackBot curBot : bots)
+				if (curBot.isRunning())
+					return true;
+			return false;
+		}
+
+		/**
+		 * Log lines per second for each bot and overall, since the last report
+		 * or if final since the bots started
+		 */
+		public synchronized void report(boolean stopped) {
+			long now = System.nanoTime();
+			double seconds = (now - (stopped ? startNanos : lastReportNanos)) / 1000000000d;
+			long total = 0;
+			StringBuilder perBot = new StringBuilder();
+			for (int i = 0; i < bots.size(); i++) {
+				LoopbackBot curBot = bots.get(i);
+				long echoed = curBot.getLinesEchoed();
+				long lines = stopped ? echoed : echoed - lastEchoed[i];
+				lastEchoed[i] = echoed;
+				total += lines;
+				perBot.append("\n\t").append(curBot.getNick()).append(": ").append(String.format("%.0f", lines / seconds)).append(" lines/sec, ").append(echoed).append(" echoed");
+			}
+			lastReportNanos = now;
+			log.info((stopped ? "Loopback bots stopped, averaged " : "Loopback bots echoing ") + String.format("%.0f", total / seconds) + " lines/sec overall" + perBot);
+		}
+
+		public void awaitStopped() throws InterruptedException {
+			for (Thread curThread : threads)
+				curThread.join();
+		}
+
+		public void close() {
+			for (LoopbackBot curBot : bots)
+				curBot.close();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+/**
+ * How a sampler spreads its lines over a table of names, like channels or
+ * target nicks
+ * @author lordquackstar
+ */
+public enum NameDistribution {
+	/**
+	 * Every name is equally likely
+	 */
+	UNIFORM("Uniform", 0),
+	/**
+	 * The nth name is picked in proportion to 1 / n^skew, so a few names are
+	 * very hot and the rest are a long tail
+	 */
+	ZIPF("Zipf", 1),
+	/**
+	 * Each name in turn, starting at a different name for each sampler
+	 */
+	SEQUENTIAL("Sequential", 0),
+	/**
+	 * Skew is the share of lines sent to the hot set, which is the first
+	 * (1 - skew) of the names. 0.8 sends 80% of lines to 20% of the names
+	 */
+	HOT_SET("Hot Set", 0.8);
+	protected final String displayName;
+	/**
+	 * Skew used when none is set
+	 */
+	protected final double defaultSkew;
+
+	NameDistribution(String displayName, double defaultSkew) {
+		this.displayName = displayName;
+		this.defaultSkew = defaultSkew;
+	}
+
+	public double getDefaultSkew() {
+		return defaultSkew;
+	}
+
+	public static NameDistribution fromString(String value) {
+		for (NameDistribution curDistribution : values())
+			if (curDistribution.name().equals(value) || curDistribution.displayName.equals(value))
+				return curDistribution;
+		return UNIFORM;
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
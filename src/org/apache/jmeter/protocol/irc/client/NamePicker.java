@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Getter;
+
+/**
+ * Picks indexes into a precomputed name table following a NameDistribution.
+ * Each sampler owns its picker and random source, so picking never contends
+ * with other threads
+ * @author lordquackstar
+ */
+public class NamePicker {
+	/**
+	 * Zipf cumulative probabilities by table size and skew, shared since
+	 * every sampler in a test uses the same ones
+	 */
+	protected static final ConcurrentHashMap<String, double[]> zipfTables = new ConcurrentHashMap<String, double[]>();
+	@Getter
+	protected final NameDistribution distribution;
+	@Getter
+	protected final int size;
+	protected final Random random;
+	protected double[] cumulative;
+	protected int hotSize;
+	protected double hotShare;
+	protected int next;
+
+	/**
+	 * @param size Number of names in the table
+	 * @param skew How skewed the distribution is, see NameDistribution. NaN
+	 * for the distribution's default
+	 * @param seed Seed for the random source, also where a sequential picker
+	 * starts
+	 */
+	public NamePicker(NameDistribution distribution, int size, double skew, long seed) {
+		if (size < 1)
+			throw new IllegalArgumentException("Need at least 1 name to pick from");
+		if (Double.isNaN(skew))
+			skew = distribution.getDefaultSkew();
+		this.distribution = distribution;
+		this.size = size;
+		this.random = new Random(seed);
+		next = (int) ((seed & Integer.MAX_VALUE) % size);
+		if (distribution == NameDistribution.ZIPF) {
+			if (skew <= 0)
+				throw new IllegalArgumentException("Zipf skew must be more than 0");
+			cumulative = zipfTable(size, skew);
+		} else if (distribution == NameDistribution.HOT_SET) {
+			if (skew <= 0 || skew >= 1)
+				throw new IllegalArgumentException("Hot set skew must be between 0 and 1");
+			hotShare = skew;
+			hotSize = Math.max(1, (int) Math.round(size * (1 - skew)));
+		}
+	}
+
+	protected static double[] zipfTable(int size, double skew) {
+		String key = size + ":" + skew;
+		double[] table = zipfTables.get(key);
+		if (table != null)
+			return table;
+		table = new double[size];
+		double total = 0;
+		for (int i = 0; i < size; i++)
+			table[i] = total += 1 / Math.pow(i + 1, skew);
+		for (int i = 0; i < size; i++)
+			table[i] /= total;
+		double[] existing = zipfTables.putIfAbsent(key, table);
+		return existing != null ? existing : table;
+	}
+
+	/**
+	 * @return Index of the next name
+	 */
+	public int next() {
+		if (size == 1)
+			return 0;
+		if (distribution == NameDistribution.ZIPF) {
+			int index = Arrays.binarySearch(cumulative, random.nextDouble());
+			//Not found gives -(insertion point) - 1, the first entry above
+			return Math.min(index < 0 ? -index - 1 : index, size - 1);
+		} else if (distribution == NameDistribution.SEQUENTIAL) {
+			int current = next;
+			next = current + 1 == size ? 0 : current + 1;
+			return current;
+		} else if (distribution == NameDistribution.HOT_SET) {
+			if (hotSize == size || random.nextDouble() < hotShare)
+				return random.nextInt(hotSize);
+			return hotSize + random.nextInt(size - hotSize);
+		}
+		return random.nextInt(size);
+	}
+}
@@ -0,0 +1,640 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import lombok.Getter;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Non blocking IrcServer engine. A small fixed set of event loop threads each
+ * own a Selector and serve many connections, framing CRLF lines straight out
+ * of a reusable direct buffer and writing from per connection outbound queues.
+ * With TLS each connection gets an SSLEngine that decrypts into the same
+ * buffer and encrypts the same gathered batches
+ * @author lordquackstar
+ */
+public class NioIrcServer extends IrcServer {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	/**
+	 * How long a new connection has to send its NICK line
+	 */
+	protected static final long nickTimeout = 5000;
+	protected static final ByteBuffer emptyBuffer = ByteBuffer.allocate(0);
+	protected final int numEventLoops;
+	protected ServerSocketChannel serverChannel;
+	protected EventLoop[] eventLoops;
+	protected final AtomicInteger nextEventLoop = new AtomicInteger();
+
+	public NioIrcServer(int port, IrcBotGui gui, int numEventLoops) {
+		super(port, gui);
+		this.numEventLoops = Math.max(1, numEventLoops);
+	}
+
+	@Override
+	public void init() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		if (reusePort)
+			ReusePort.enable(serverChannel);
+		serverChannel.bind(new InetSocketAddress(port));
+		eventLoops = new EventLoop[numEventLoops];
+		for (int i = 0; i < numEventLoops; i++) {
+			eventLoops[i] = new EventLoop(i);
+			Thread loopThread = new Thread(eventLoops[i], "IrcServer-EventLoop-" + port + "-" + i);
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+		listening.countDown();
+		log.info("NIO " + (tls != null ? "TLS server" : "server") + " created on port " + port + " with " + numEventLoops + " event loops");
+
+		//Accept in this thread, handing connections to the event loops in turn
+		while (true) {
+			SocketChannel channel = serverChannel.accept();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			EventLoop eventLoop = eventLoops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % numEventLoops];
+			NioClient client = new NioClient(channel, eventLoop, tls != null ? tls.createEngine() : null);
+			client.log("New client connection accepted on event loop " + eventLoop.getLoopNum());
+			addClient(client);
+			eventLoop.register(client);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closedGood = true;
+		if (serverChannel != null)
+			serverChannel.close();
+		super.close();
+		if (eventLoops != null)
+			for (EventLoop curLoop : eventLoops)
+				curLoop.shutdown();
+	}
+
+	/**
+	 * A single selector thread serving a share of the connections
+	 */
+	protected class EventLoop implements Runnable {
+		@Getter
+		protected final int loopNum;
+		protected final Selector selector;
+		protected final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+		protected final ByteBuffer[] writeBatch = new ByteBuffer[64];
+		protected byte[] lineBytes = new byte[1024];
+		protected final IrcMessage message = new IrcMessage();
+		protected final ConcurrentLinkedQueue<NioClient> newClients = new ConcurrentLinkedQueue<NioClient>();
+		protected final ConcurrentLinkedQueue<NioClient> writeReady = new ConcurrentLinkedQueue<NioClient>();
+		/**
+		 * Clients with lines waiting on flood control
+		 */
+		protected final List<NioClient> throttled = new ArrayList<NioClient>();
+		/**
+		 * Nanoseconds until the next throttled line is due, 0 if there are none
+		 */
+		protected long nextReleaseNanos = 0;
+		protected long lastExpireCheck = System.currentTimeMillis();
+		protected volatile boolean running = true;
+
+		public EventLoop(int loopNum) throws IOException {
+			this.loopNum = loopNum;
+			selector = Selector.open();
+		}
+
+		public void register(NioClient client) {
+			newClients.add(client);
+			selector.wakeup();
+		}
+
+		/**
+		 * Called by sampler threads when a client has new outbound data
+		 */
+		public void scheduleWrite(NioClient client) {
+			writeReady.add(client);
+			selector.wakeup();
+		}
+
+		/**
+		 * Stop the loop. The loop thread closes the selector itself, closing it
+		 * from here could break the loop's iteration of the selected keys
+		 */
+		public void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select(nextReleaseNanos == 0 ? 1000 : Math.max(1, nextReleaseNanos / 1000000));
+					NioClient client;
+					while ((client = newClients.poll()) != null)
+						try {
+							client.setConnectTime(System.currentTimeMillis());
+							client.setKey(client.getChannel().register(selector, SelectionKey.OP_READ, client));
+							//Lines sent before the key existed
+							if (!client.getOutbound().isEmpty() && client.getWriteScheduled().compareAndSet(false, true))
+								flush(client);
+						} catch (IOException e) {
+							clientFailed(client, e);
+						}
+					while ((client = writeReady.poll()) != null)
+						try {
+							flush(client);
+						} catch (IOException e) {
+							clientFailed(client, e);
+						}
+
+					Iterator<SelectionKey> keyItr = selector.selectedKeys().iterator();
+					while (keyItr.hasNext()) {
+						SelectionKey key = keyItr.next();
+						keyItr.remove();
+						client = (NioClient) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable())
+								read(client);
+							if (key.isValid() && key.isWritable())
+								flush(client);
+						} catch (IOException e) {
+							clientFailed(client, e);
+						}
+					}
+
+					releaseThrottled();
+					expireUnregistered();
+				}
+			} catch (ClosedSelectorException e) {
+				//Shutting down
+			} catch (IOException e) {
+				if (running)
+					log.error("Event loop " + loopNum + " failed", e);
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					log.debug("Could not close selector of event loop " + loopNum, e);
+				}
+			}
+		}
+
+		protected void clientFailed(NioClient client, IOException e) {
+			if (client.getEngine() != null && !client.isHandshakeDone())
+				tls.handshakeFailed();
+			log.error("Client #" + client.getClientNum() + " raised exception during input. Forgetting about client now...", e);
+			forgetClient(client);
+		}
+
+		/**
+		 * Handle throttled lines that are due, working out when the next are
+		 */
+		protected void releaseThrottled() {
+			nextReleaseNanos = 0;
+			Iterator<NioClient> clientItr = throttled.iterator();
+			while (clientItr.hasNext()) {
+				NioClient client = clientItr.next();
+				long waitNanos = 0;
+				try {
+					if (client.getKey() != null && client.getKey().isValid())
+						waitNanos = NioIrcServer.this.releaseThrottled(client, message);
+				} catch (IOException e) {
+					clientFailed(client, e);
+				}
+				if (waitNanos == 0)
+					clientItr.remove();
+				else if (nextReleaseNanos == 0 || waitNanos < nextReleaseNanos)
+					nextReleaseNanos = waitNanos;
+			}
+		}
+
+		/**
+		 * Drop connections that never sent their NICK line
+		 */
+		protected void expireUnregistered() {
+			long now = System.currentTimeMillis();
+			if (now - lastExpireCheck < 1000)
+				return;
+			lastExpireCheck = now;
+			for (SelectionKey curKey : selector.keys()) {
+				NioClient client = (NioClient) curKey.attachment();
+				if (client.getInitNick() == null && now - client.getConnectTime() > nickTimeout) {
+					client.log("Timed out sending Join. Disconnecting...");
+					forgetClient(client);
+				}
+			}
+		}
+
+		protected void read(NioClient client) throws IOException {
+			if (client.getEngine() != null) {
+				readTls(client);
+				return;
+			}
+			readBuffer.clear();
+			int read = client.getChannel().read(readBuffer);
+			if (read == -1) {
+				client.log("Client has disconnected, ending");
+				forgetClient(client);
+				return;
+			}
+			long receivedNanos = System.nanoTime();
+			readBuffer.flip();
+			frameLines(client, receivedNanos);
+		}
+
+		/**
+		 * Decrypt what arrived into the read buffer and frame it like
+		 * plaintext, moving the handshake along as needed
+		 */
+		protected void readTls(NioClient client) throws IOException {
+			ByteBuffer netIn = client.getNetIn();
+			int read = client.getChannel().read(netIn);
+			if (read == -1) {
+				client.log("Client has disconnected, ending");
+				forgetClient(client);
+				return;
+			}
+			long receivedNanos = System.nanoTime();
+			netIn.flip();
+			readBuffer.clear();
+			try {
+				while (netIn.hasRemaining()) {
+					SSLEngineResult result = client.getEngine().unwrap(netIn, readBuffer);
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+						//Rest of the record hasn't arrived yet
+						break;
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						//Make room by handling what has been decrypted so far
+						readBuffer.flip();
+						frameLines(client, receivedNanos);
+						readBuffer.clear();
+						continue;
+					}
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						client.log("Client closed TLS session, ending");
+						forgetClient(client);
+						return;
+					}
+					if (result.getHandshakeStatus() == HandshakeStatus.FINISHED)
+						handshakeFinished(client);
+					else if (!handshake(client, result.getHandshakeStatus()))
+						break;
+				}
+			} finally {
+				netIn.compact();
+			}
+			readBuffer.flip();
+			frameLines(client, receivedNanos);
+		}
+
+		/**
+		 * Run the handshake as far as it can go without more input
+		 * @return False if it is waiting for the socket to take pending output
+		 */
+		protected boolean handshake(NioClient client, HandshakeStatus status) throws IOException {
+			SSLEngine engine = client.getEngine();
+			while (true)
+				if (status == HandshakeStatus.NEED_TASK) {
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null)
+						task.run();
+					status = engine.getHandshakeStatus();
+				} else if (status == HandshakeStatus.NEED_WRAP) {
+					if (!writeNetOut(client))
+						return false;
+					ByteBuffer netOut = client.getNetOut();
+					netOut.clear();
+					SSLEngineResult result = engine.wrap(emptyBuffer, netOut);
+					netOut.flip();
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+						throw new IOException("TLS session closed during handshake");
+					status = result.getHandshakeStatus();
+					if (status == HandshakeStatus.FINISHED)
+						handshakeFinished(client);
+				} else
+					return writeNetOut(client);
+		}
+
+		protected void handshakeFinished(NioClient client) throws IOException {
+			if (client.isHandshakeDone())
+				return;
+			client.setHandshakeDone(true);
+			tls.handshakeFinished(client, client.getEngine().getSession());
+			//Send anything queued while handshaking
+			if (!client.getOutbound().isEmpty())
+				flush(client);
+		}
+
+		/**
+		 * Write out pending encrypted bytes, registering for OP_WRITE if the
+		 * socket is full
+		 * @return True if they're all written
+		 */
+		protected boolean writeNetOut(NioClient client) throws IOException {
+			ByteBuffer netOut = client.getNetOut();
+			if (netOut.hasRemaining())
+				client.getChannel().write(netOut);
+			if (!netOut.hasRemaining())
+				return true;
+			client.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return false;
+		}
+
+		/**
+		 * Frame complete lines out of the flipped read buffer, keeping any
+		 * trailing partial line for next time
+		 */
+		protected void frameLines(NioClient client, long receivedNanos) throws IOException {
+			int lineStart = 0;
+			int limit = readBuffer.limit();
+			for (int i = 0; i < limit; i++)
+				if (readBuffer.get(i) == '\n') {
+					handleFrame(client, lineStart, i, receivedNanos);
+					lineStart = i + 1;
+				}
+			if (lineStart < limit) {
+				readBuffer.position(lineStart);
+				client.appendPartial(readBuffer);
+			}
+		}
+
+		/**
+		 * Handle the line in the read buffer from start (inclusive) to end (the
+		 * position of the LF), prepending whatever partial line is buffered
+		 * @param receivedNanos When the read that completed the line returned
+		 */
+		protected void handleFrame(NioClient client, int start, int end, long receivedNanos) throws IOException {
+			int partialLength = client.getPartial().position();
+			int length = partialLength + end - start;
+			if (lineBytes.length < length)
+				lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+			if (partialLength > 0) {
+				client.getPartial().flip();
+				client.getPartial().get(lineBytes, 0, partialLength);
+				client.getPartial().clear();
+			}
+			readBuffer.position(start);
+			readBuffer.get(lineBytes, partialLength, end - start);
+			if (length > 0 && lineBytes[length - 1] == '\r')
+				length--;
+			message.parse(lineBytes, 0, length);
+
+			if (client.getInitNick() == null)
+				handleNickLine(client, message);
+			else if (client.getFlood() == null || client.getFlood().admit(message, receivedNanos))
+				handleLine(client, message, receivedNanos);
+			else if (client.getFlood().isExcess())
+				excessFlood(client);
+			else if (client.getFlood().getQueuedLines() == 1)
+				//First line queued, release it when due
+				throttled.add(client);
+		}
+
+		/**
+		 * Write as much queued data as the socket will take in one gathering
+		 * write per round, registering for OP_WRITE if the socket is full
+		 */
+		protected void flush(NioClient client) throws IOException {
+			SelectionKey key = client.getKey();
+			if (key == null || !key.isValid()) {
+				//Not registered yet, registering flushes anything queued. Let later sends schedule again
+				client.getWriteScheduled().set(false);
+				return;
+			}
+			if (client.getEngine() != null) {
+				flushTls(client);
+				return;
+			}
+			ArrayDeque<OutboundLine> writing = client.getWriting();
+			while (true) {
+				OutboundLine next;
+				while (writing.size() < writeBatch.length && (next = client.getOutbound().poll()) != null)
+					writing.add(next);
+				if (writing.isEmpty()) {
+					key.interestOps(SelectionKey.OP_READ);
+					client.getWriteScheduled().set(false);
+					//Catch lines queued after the last poll but before the flag was cleared
+					if (client.getOutbound().isEmpty() || !client.getWriteScheduled().compareAndSet(false, true))
+						return;
+					continue;
+				}
+
+				int batchSize = 0;
+				for (OutboundLine curLine : writing) {
+					writeBatch[batchSize++] = curLine.getData();
+					if (batchSize == writeBatch.length)
+						break;
+				}
+				long written = client.getChannel().write(writeBatch, 0, batchSize);
+				for (int i = 0; i < batchSize; i++)
+					writeBatch[i] = null;
+				long now = System.nanoTime();
+				int linesWritten = 0;
+				while (!writing.isEmpty() && !writing.peek().getData().hasRemaining()) {
+					writing.poll().written(now);
+					linesWritten++;
+				}
+				metrics.written(linesWritten, written);
+				if (!writing.isEmpty()) {
+					//Socket is full, wait until its writable
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Like flush() but each batch is encrypted with one gathering wrap.
+		 * Lines count as written once their encrypted bytes are
+		 */
+		protected void flushTls(NioClient client) throws IOException {
+			SelectionKey key = client.getKey();
+			SSLEngine engine = client.getEngine();
+			ArrayDeque<OutboundLine> writing = client.getWriting();
+			while (true) {
+				if (!writeNetOut(client))
+					return;
+				long now = System.nanoTime();
+				int linesWritten = 0;
+				while (!writing.isEmpty() && !writing.peek().getData().hasRemaining()) {
+					writing.poll().written(now);
+					linesWritten++;
+				}
+				if (linesWritten > 0)
+					metrics.written(linesWritten, 0);
+				if (!client.isHandshakeDone()) {
+					//Lines wait for the handshake, which sends them when it finishes
+					if (handshake(client, engine.getHandshakeStatus()))
+						key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+
+				OutboundLine next;
+				while (writing.size() < writeBatch.length && (next = client.getOutbound().poll()) != null)
+					writing.add(next);
+				if (writing.isEmpty()) {
+					key.interestOps(SelectionKey.OP_READ);
+					client.getWriteScheduled().set(false);
+					//Catch lines queued after the last poll but before the flag was cleared
+					if (client.getOutbound().isEmpty() || !client.getWriteScheduled().compareAndSet(false, true))
+						return;
+					continue;
+				}
+
+				int batchSize = 0;
+				for (OutboundLine curLine : writing) {
+					writeBatch[batchSize++] = curLine.getData();
+					if (batchSize == writeBatch.length)
+						break;
+				}
+				ByteBuffer netOut = client.getNetOut();
+				netOut.clear();
+				SSLEngineResult result = engine.wrap(writeBatch, 0, batchSize, netOut);
+				netOut.flip();
+				for (int i = 0; i < batchSize; i++)
+					writeBatch[i] = null;
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new IOException("TLS session closed");
+				metrics.written(0, result.bytesConsumed());
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK || result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+					//Renegotiation or a key update, handshake messages go out with the next write
+					handshake(client, result.getHandshakeStatus());
+			}
+		}
+	}
+
+	/**
+	 * Client served by an event loop
+	 */
+	@Getter
+	protected static class NioClient extends Client {
+		protected final SocketChannel channel;
+		protected final EventLoop eventLoop;
+		protected SelectionKey key;
+		protected long connectTime;
+		/**
+		 * Bytes of a line that hasn't been terminated yet. Only touched by the
+		 * event loop
+		 */
+		protected ByteBuffer partial = ByteBuffer.allocate(512);
+		protected final ConcurrentLinkedQueue<OutboundLine> outbound = new ConcurrentLinkedQueue<OutboundLine>();
+		/**
+		 * Lines taken off the outbound queue that aren't fully written yet.
+		 * Only touched by the event loop
+		 */
+		protected final ArrayDeque<OutboundLine> writing = new ArrayDeque<OutboundLine>();
+		/**
+		 * True while the event loop is responsible for flushing this client,
+		 * so senders only wake the selector once per batch
+		 */
+		protected final AtomicBoolean writeScheduled = new AtomicBoolean();
+		/**
+		 * TLS state, engine is null for plaintext. Only touched by the event
+		 * loop. netIn holds encrypted bytes not unwrapped yet, netOut (flipped)
+		 * encrypted bytes not written yet
+		 */
+		protected final SSLEngine engine;
+		protected ByteBuffer netIn;
+		protected ByteBuffer netOut;
+		protected boolean handshakeDone = false;
+
+		public NioClient(SocketChannel channel, EventLoop eventLoop, SSLEngine engine) {
+			this.channel = channel;
+			this.eventLoop = eventLoop;
+			this.engine = engine;
+			if (engine != null) {
+				int packetSize = engine.getSession().getPacketBufferSize();
+				netIn = ByteBuffer.allocate(packetSize);
+				netOut = ByteBuffer.allocate(packetSize);
+				netOut.flip();
+			}
+		}
+
+		protected void setHandshakeDone(boolean handshakeDone) {
+			this.handshakeDone = handshakeDone;
+		}
+
+		protected void setKey(SelectionKey key) {
+			this.key = key;
+		}
+
+		protected void setConnectTime(long connectTime) {
+			this.connectTime = connectTime;
+		}
+
+		/**
+		 * Buffer the start of a line, capped like LineReader so a client that
+		 * never ends its line can't use up the heap
+		 */
+		protected void appendPartial(ByteBuffer src) throws IOException {
+			if (partial.position() + src.remaining() > LineReader.maxLineLength)
+				throw new IOException("Line longer than " + LineReader.maxLineLength + " bytes");
+			if (partial.remaining() < src.remaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(partial.capacity() * 2, partial.position() + src.remaining()));
+				partial.flip();
+				grown.put(partial);
+				partial = grown;
+			}
+			partial.put(src);
+		}
+
+		@Override
+		public void send(byte[] line, PendingRequest request) throws IOException {
+			if (!channel.isOpen())
+				throw new IOException("Client #" + clientNum + " is disconnected");
+			outbound.add(new OutboundLine(ByteBuffer.wrap(line), request));
+			if (writeScheduled.compareAndSet(false, true))
+				eventLoop.scheduleWrite(this);
+		}
+
+		/**
+		 * Lines being written are only touched by the event loop, so they
+		 * are only roughly included
+		 */
+		@Override
+		public int getOutboundDepth() {
+			return outbound.size() + writing.size();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (key != null)
+				key.cancel();
+			channel.close();
+		}
+	}
+}
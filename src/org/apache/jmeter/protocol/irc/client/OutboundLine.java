@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.nio.ByteBuffer;
+import lombok.Getter;
+
+/**
+ * An encoded line (including CRLF) waiting in a client's outbound queue.
+ * The enqueue time is kept with the line so latency is measured from when the
+ * sampler sent it, not from when its batch was eventually flushed. Lines sent
+ * for a pending request carry it so the writer can timestamp the write
+ * @author lordquackstar
+ */
+@Getter
+public class OutboundLine {
+	protected final ByteBuffer data;
+	protected final long enqueueNanos;
+	/**
+	 * The request this line was sent for, or null for server lines
+	 */
+	protected final PendingRequest request;
+
+	public OutboundLine(ByteBuffer data, PendingRequest request) {
+		this.data = data;
+		this.request = request;
+		this.enqueueNanos = System.nanoTime();
+		if (request != null)
+			request.queued(enqueueNanos);
+	}
+
+	/**
+	 * Called by the writer once the whole line has been written
+	 */
+	public void written(long writtenNanos) {
+		if (request != null)
+			request.written(writtenNanos);
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import lombok.Getter;
+
+/**
+ * A line sent by a sampler that is waiting for its reply. Identified by the
+ * sampler's bot number plus a per sampler sequence number, which is appended
+ * to the nick as the line's token when several lines are in flight at once
+ * @author lordquackstar
+ */
+@Getter
+public class PendingRequest {
+	/**
+	 * Separates the nick and sequence number in a token
+	 */
+	public static final char sequenceSeparator = '|';
+	protected final IrcBotSampler sampler;
+	protected final ResponseTemplate template;
+	protected final int sequence;
+	protected final long key;
+	/**
+	 * The encoded line including CRLF
+	 */
+	protected byte[] line;
+	/**
+	 * Wall clock time the line was scheduled to be sent, in milliseconds
+	 */
+	protected long startTime;
+	/**
+	 * When the line was due to be sent. Latency is measured from here so time
+	 * an open loop line spent waiting to be sent isn't hidden
+	 */
+	protected long scheduledNanos;
+	/**
+	 * When the line was actually sent
+	 */
+	protected long startNanos;
+	/**
+	 * When the line was put on the client's outbound queue
+	 */
+	protected long queuedNanos;
+	/**
+	 * When the client's writer finished writing the line to the socket. Set
+	 * by the writer thread, which may race the reply
+	 */
+	protected volatile long writtenNanos;
+	/**
+	 * When the reply was read off the socket
+	 */
+	protected long receivedNanos;
+	/**
+	 * When the reply was matched to this request
+	 */
+	protected long endNanos;
+	/**
+	 * When the sampler thread picked up the completed request
+	 */
+	protected long wokenNanos;
+	/**
+	 * The reply line without CRLF, still encoded
+	 */
+	protected byte[] response;
+	/**
+	 * If the result records the request and response. When false the reply
+	 * line isn't even copied
+	 */
+	protected boolean detailed = true;
+	/**
+	 * When the request times out, or 0 if it waits forever
+	 */
+	protected long deadlineNanos;
+	/**
+	 * Timer wheel rotations left before the deadline. Only touched by the wheel
+	 */
+	protected long remainingRounds;
+	/**
+	 * The timer wheel bucket the request is linked into and its neighbours
+	 * there, -1 if it isn't in one. Only touched by the wheel
+	 */
+	protected int wheelBucket = -1;
+	protected PendingRequest wheelPrev;
+	protected PendingRequest wheelNext;
+	/**
+	 * Set once the request's timeout is no longer needed
+	 */
+	protected volatile boolean timeoutCancelled = false;
+	protected boolean timedOut = false;
+	/**
+	 * If the reply didn't match the event type's reply rules
+	 */
+	protected boolean wrongReply = false;
+	/**
+	 * Why the line couldn't be sent, null if it was
+	 */
+	protected String error;
+
+	public PendingRequest(IrcBotSampler sampler, ResponseTemplate template, int sequence) {
+		this.sampler = sampler;
+		this.template = template;
+		this.sequence = sequence;
+		this.key = toKey(sampler.getBotNumber(), sequence);
+	}
+
+	public static long toKey(int botNumber, int sequence) {
+		return ((long) botNumber << 32) | (sequence & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Mark the request as sent. Should be called right before the line is
+	 * handed to the client
+	 * @param scheduledNanos When the line was due to be sent
+	 */
+	public void start(byte[] line, long scheduledNanos) {
+		this.line = line;
+		startNanos = System.nanoTime();
+		this.scheduledNanos = Math.min(scheduledNanos, startNanos);
+		startTime = System.currentTimeMillis() - (startNanos - this.scheduledNanos) / 1000000;
+	}
+
+	/**
+	 * Called when the line due at scheduledNanos couldn't be sent at all
+	 */
+	public void fail(String error, long scheduledNanos) {
+		this.error = error;
+		this.scheduledNanos = startNanos = endNanos = scheduledNanos;
+		startTime = System.currentTimeMillis() - (System.nanoTime() - scheduledNanos) / 1000000;
+		sampler.requestCompleted(this);
+	}
+
+	/**
+	 * Called by the client when the line is put on its outbound queue
+	 */
+	public void queued(long queuedNanos) {
+		this.queuedNanos = queuedNanos;
+	}
+
+	/**
+	 * Called by the client's writer once the line is written to the socket
+	 */
+	public void written(long writtenNanos) {
+		this.writtenNanos = writtenNanos;
+	}
+
+	/**
+	 * Called by the server with the reply line
+	 * @param response Copy of the reply line without CRLF, owned by the request
+	 * @param receivedNanos When the reply was read off the socket
+	 */
+	public void complete(byte[] response, long receivedNanos) {
+		endNanos = System.nanoTime();
+		this.receivedNanos = receivedNanos;
+		this.response = response;
+		sampler.requestCompleted(this);
+	}
+
+	/**
+	 * Called by the server with a reply that doesn't match the event type's
+	 * reply rules
+	 */
+	public void completeWrong(byte[] response, long receivedNanos) {
+		wrongReply = true;
+		complete(response, receivedNanos);
+	}
+
+	/**
+	 * Called by the pending request table if no reply came before the deadline
+	 */
+	public void timeout() {
+		endNanos = System.nanoTime();
+		timedOut = true;
+		sampler.requestCompleted(this);
+	}
+
+	/**
+	 * Called by the sampler thread when it takes the completed request
+	 */
+	public void woken() {
+		wokenNanos = System.nanoTime();
+	}
+
+	public void setDetailed(boolean detailed) {
+		this.detailed = detailed;
+	}
+
+	protected void setDeadlineNanos(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	protected void setRemainingRounds(long remainingRounds) {
+		this.remainingRounds = remainingRounds;
+	}
+
+	protected void setWheelBucket(int wheelBucket) {
+		this.wheelBucket = wheelBucket;
+	}
+
+	protected void setWheelPrev(PendingRequest wheelPrev) {
+		this.wheelPrev = wheelPrev;
+	}
+
+	protected void setWheelNext(PendingRequest wheelNext) {
+		this.wheelNext = wheelNext;
+	}
+
+	protected void setTimeoutCancelled(boolean timeoutCancelled) {
+		this.timeoutCancelled = timeoutCancelled;
+	}
+
+	/**
+	 * Decode the sent line. Only done when a result needs it
+	 */
+	public String getLineString() {
+		return new String(line, 0, line.length - 2, IrcServer.charset);
+	}
+
+	/**
+	 * @return Milliseconds between the line being due and receiving the reply
+	 */
+	public long getElapsed() {
+		return getLatencyNanos() / 1000000;
+	}
+
+	public long getLatencyNanos() {
+		return endNanos - scheduledNanos;
+	}
+
+	/**
+	 * @return Nanoseconds the line was sent after it was due, always 0 in
+	 * closed loop
+	 */
+	public long getScheduleLagNanos() {
+		return startNanos - scheduledNanos;
+	}
+
+	/**
+	 * @return Nanoseconds from the sampler sending the line to the writer
+	 * finishing writing it: queueing, writer contention and flush time. -1 if
+	 * it was never written
+	 */
+	public long getWriteNanos() {
+		long written = getWrittenOrReceived();
+		return written == 0 ? -1 : written - startNanos;
+	}
+
+	/**
+	 * @return Nanoseconds from the line being written to the reply being read
+	 * off the socket, ie the bot under test plus the network. -1 if there was
+	 * no reply
+	 */
+	public long getBotNanos() {
+		long written = getWrittenOrReceived();
+		return written == 0 || receivedNanos == 0 ? -1 : receivedNanos - written;
+	}
+
+	/**
+	 * @return Nanoseconds from the reply being read to it being matched to
+	 * this request. -1 if there was no reply
+	 */
+	public long getMatchNanos() {
+		return receivedNanos == 0 ? -1 : endNanos - receivedNanos;
+	}
+
+	/**
+	 * @return Nanoseconds from the request completing to the sampler thread
+	 * waking up with it
+	 */
+	public long getWakeNanos() {
+		return wokenNanos == 0 ? -1 : wokenNanos - endNanos;
+	}
+
+	/**
+	 * The writer's timestamp is taken after the write returns, so a fast bot
+	 * can reply before it is set. Treat the line as written when the reply came
+	 */
+	protected long getWrittenOrReceived() {
+		long written = writtenNanos;
+		if (receivedNanos != 0 && (written == 0 || written > receivedNanos))
+			return receivedNanos;
+		return written;
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+/**
+ * Pending requests keyed by their primitive long key. Striped into
+ * independently locked open addressing tables so lookups don't box the key
+ * and sampler and reader threads rarely contend on the same lock
+ * @author lordquackstar
+ */
+public class PendingRequestMap {
+	protected final Stripe[] stripes;
+	protected final int stripeMask;
+
+	/**
+	 * @param numStripes Number of independently locked tables, rounded up to a
+	 * power of 2
+	 */
+	public PendingRequestMap(int numStripes) {
+		int size = Integer.highestOneBit(Math.max(2, numStripes) - 1) << 1;
+		stripes = new Stripe[size];
+		for (int i = 0; i < size; i++)
+			stripes[i] = new Stripe();
+		stripeMask = size - 1;
+	}
+
+	/**
+	 * Spread the key's bits, since keys are bot numbers and small sequences
+	 */
+	protected static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	protected Stripe stripeFor(int hash) {
+		return stripes[(hash >>> 24) & stripeMask];
+	}
+
+	public void put(long key, PendingRequest request) {
+		int hash = hash(key);
+		Stripe stripe = stripeFor(hash);
+		synchronized (stripe) {
+			stripe.put(key, hash, request);
+		}
+	}
+
+	/**
+	 * @return The removed request or null if there wasn't one
+	 */
+	public PendingRequest remove(long key) {
+		int hash = hash(key);
+		Stripe stripe = stripeFor(hash);
+		synchronized (stripe) {
+			return stripe.remove(key, hash, null);
+		}
+	}
+
+	/**
+	 * Remove the key only if it still maps to request
+	 * @return True if it was removed
+	 */
+	public boolean remove(long key, PendingRequest request) {
+		int hash = hash(key);
+		Stripe stripe = stripeFor(hash);
+		synchronized (stripe) {
+			return stripe.remove(key, hash, request) != null;
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe curStripe : stripes)
+			synchronized (curStripe) {
+				size += curStripe.size;
+			}
+		return size;
+	}
+
+	public void clear() {
+		for (Stripe curStripe : stripes)
+			synchronized (curStripe) {
+				curStripe.clear();
+			}
+	}
+
+	/**
+	 * Linear probing table. Deletes shift later entries back instead of
+	 * leaving tombstones, so a table that churns forever never degrades
+	 */
+	protected static class Stripe {
+		protected long[] keys = new long[16];
+		protected PendingRequest[] values = new PendingRequest[16];
+		protected int size = 0;
+
+		protected void put(long key, int hash, PendingRequest request) {
+			if ((size + 1) * 2 > values.length)
+				resize();
+			int mask = values.length - 1;
+			int index = hash & mask;
+			while (values[index] != null) {
+				if (keys[index] == key) {
+					values[index] = request;
+					return;
+				}
+				index = (index + 1) & mask;
+			}
+			keys[index] = key;
+			values[index] = request;
+			size++;
+		}
+
+		protected PendingRequest remove(long key, int hash, PendingRequest expected) {
+			int mask = values.length - 1;
+			int index = hash & mask;
+			while (values[index] != null) {
+				if (keys[index] == key) {
+					PendingRequest request = values[index];
+					if (expected != null && request != expected)
+						return null;
+					delete(index);
+					return request;
+				}
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+		protected void delete(int index) {
+			int mask = values.length - 1;
+			values[index] = null;
+			size--;
+			//Shift back any entry that probed past the hole
+			int hole = index;
+			int next = (index + 1) & mask;
+			while (values[next] != null) {
+				int home = hash(keys[next]) & mask;
+				//Move if home isn't cyclically within (hole, next]
+				if (hole <= next ? (home <= hole || home > next) : (home <= hole && home > next)) {
+					keys[hole] = keys[next];
+					values[hole] = values[next];
+					values[next] = null;
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+		}
+
+		protected void resize() {
+			long[] oldKeys = keys;
+			PendingRequest[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new PendingRequest[oldValues.length * 2];
+			size = 0;
+			for (int i = 0; i < oldValues.length; i++)
+				if (oldValues[i] != null)
+					put(oldKeys[i], hash(oldKeys[i]), oldValues[i]);
+		}
+
+		protected void clear() {
+			keys = new long[16];
+			values = new PendingRequest[16];
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Correlation table of requests waiting on a reply, keyed by the bot number
+ * embedded in their nick plus the optional sequence number after it. Inbound
+ * lines are matched by locating a known nick prefix and parsing the fixed
+ * width number (and sequence) after it, so dispatch costs one hash lookup no
+ * matter how many samplers or requests are in flight. Matching works on the
+ * raw line bytes and the table is keyed by primitive longs, so nothing is
+ * decoded or boxed per line. The prefixes and any reply rules share one
+ * automaton, so the same single pass also tells if the reply is the expected
+ * one.
+ * @author lordquackstar
+ */
+public class PendingRequestTable {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	/**
+	 * Digits in the largest sequence number, Integer.MAX_VALUE
+	 */
+	protected static final int maxSequenceDigits = 10;
+	protected final PendingRequestMap pending = new PendingRequestMap(64);
+	protected final Set<String> nickPrefixes = new CopyOnWriteArraySet<String>();
+	protected volatile List<ReplyRule> replyRules = Collections.emptyList();
+	/**
+	 * The nick prefixes and reply rules that dispatch searches for
+	 */
+	protected volatile ReplyMatcher matcher = new ReplyMatcher(Collections.<byte[]>emptyList(), replyRules);
+	/**
+	 * Expires requests that have a reply timeout. Started with the first one
+	 */
+	protected volatile HashedTimerWheel timerWheel;
+	protected final ConcurrentHashMap<String, AtomicLong> timeoutCounts = new ConcurrentHashMap<String, AtomicLong>();
+	protected final ConcurrentHashMap<String, AtomicLong> wrongReplyCounts = new ConcurrentHashMap<String, AtomicLong>();
+	/**
+	 * Replies to requests that already completed or timed out, eg the other
+	 * channel members' replies to a broadcast line
+	 */
+	protected final AtomicLong unclaimedReplies = new AtomicLong();
+	protected final StripedCounter repliesMatched = new StripedCounter();
+	protected final LatencyRecorder latencies;
+
+	public PendingRequestTable(LatencyRecorder latencies) {
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Register a request that is about to be sent
+	 * @param timeoutMillis How long to wait for a reply, 0 to wait forever
+	 */
+	public void register(PendingRequest request, long timeoutMillis) {
+		String nickPrefix = request.getSampler().getNickPrefix();
+		if (!nickPrefixes.contains(nickPrefix))
+			addNickPrefix(nickPrefix);
+		pending.put(request.getKey(), request);
+		if (timeoutMillis > 0) {
+			request.setDeadlineNanos(request.getScheduledNanos() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+			getTimerWheel().add(request);
+		}
+	}
+
+	protected synchronized void addNickPrefix(String nickPrefix) {
+		if (!nickPrefixes.add(nickPrefix))
+			return;
+		rebuildMatcher();
+	}
+
+	/**
+	 * Replace the rules replies are checked against. Should be set before the
+	 * test starts
+	 */
+	public synchronized void setReplyRules(List<ReplyRule> replyRules) {
+		this.replyRules = new ArrayList<ReplyRule>(replyRules);
+		rebuildMatcher();
+	}
+
+	protected synchronized void rebuildMatcher() {
+		List<byte[]> prefixBytes = new ArrayList<byte[]>();
+		for (String curPrefix : nickPrefixes)
+			prefixBytes.add(curPrefix.getBytes(IrcServer.charset));
+		matcher = new ReplyMatcher(prefixBytes, replyRules);
+	}
+
+	protected synchronized HashedTimerWheel getTimerWheel() {
+		if (timerWheel == null) {
+			timerWheel = new HashedTimerWheel(this, 10, 512);
+			timerWheel.start();
+		}
+		return timerWheel;
+	}
+
+	/**
+	 * Time out the request if it is still waiting for its reply
+	 */
+	public void expire(PendingRequest request) {
+		if (!pending.remove(request.getKey(), request))
+			//Got its reply in time
+			return;
+		increment(timeoutCounts, request.getTemplate().getEventType());
+		request.timeout();
+	}
+
+	protected static void increment(ConcurrentHashMap<String, AtomicLong> counts, String eventType) {
+		AtomicLong count = counts.get(eventType);
+		if (count == null) {
+			AtomicLong existing = counts.putIfAbsent(eventType, count = new AtomicLong());
+			if (existing != null)
+				count = existing;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @return Number of reply timeouts so far by event type
+	 */
+	public Map<String, Long> getTimeoutCounts() {
+		return snapshot(timeoutCounts);
+	}
+
+	/**
+	 * @return Number of replies that didn't match their rules so far by event
+	 * type
+	 */
+	public Map<String, Long> getWrongReplyCounts() {
+		return snapshot(wrongReplyCounts);
+	}
+
+	protected static Map<String, Long> snapshot(ConcurrentHashMap<String, AtomicLong> counts) {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> curEntry : counts.entrySet())
+			snapshot.put(curEntry.getKey(), curEntry.getValue().get());
+		return snapshot;
+	}
+
+	/**
+	 * Forget about a request that is no longer waiting (eg it failed to send)
+	 */
+	public void remove(PendingRequest request) {
+		if (pending.remove(request.getKey(), request))
+			cancelTimeout(request);
+	}
+
+	/**
+	 * Unlink a request that no longer needs its timeout from the timer wheel
+	 * so it isn't held until its deadline
+	 */
+	protected void cancelTimeout(PendingRequest request) {
+		HashedTimerWheel curTimerWheel = timerWheel;
+		if (request.getDeadlineNanos() != 0 && curTimerWheel != null)
+			curTimerWheel.cancel(request);
+	}
+
+	/**
+	 * Find the request waiting on this line and complete it, recording its
+	 * latency against the client. The entry is removed atomically so a
+	 * request is only ever completed once. The first line carrying the
+	 * request's token is its reply, which fails the request if it doesn't
+	 * match the event type's reply rules
+	 * @param receivedNanos When the line was read off the socket
+	 * @return True if the line is a reply to a sampler, even if its request
+	 * already completed
+	 */
+	public boolean dispatch(IrcMessage message, long receivedNanos, IrcServer.Client client) {
+		boolean reply = false;
+		byte[] line = message.getBuffer();
+		int end = message.getEnd();
+		ReplyMatcher curMatcher = matcher;
+		ReplyMatcher.Scan scan = curMatcher.scan(line, message.getStart(), end);
+		for (int i = 0; i < scan.getCount(); i++) {
+			int pattern = scan.getPattern(i);
+			if (!curMatcher.isNickPrefix(pattern))
+				continue;
+			int numberStart = scan.getStart(i) + curMatcher.getPatternLength(pattern);
+			int botNumber = parseBotNumber(line, numberStart, end);
+			if (botNumber == -1)
+				continue;
+			reply = true;
+			int sequenceStart = numberStart + IrcBotSampler.nickNumberLength;
+			PendingRequest request = pending.remove(PendingRequest.toKey(botNumber, parseSequence(line, sequenceStart, end)));
+			if (request == null)
+				continue;
+			cancelTimeout(request);
+			String eventType = request.getTemplate().getEventType();
+			boolean expected = curMatcher.isExpected(scan, eventType, message.getCommandStart(), end, scan.getStart(i), sequenceEnd(line, sequenceStart, end));
+			if (expected) {
+				request.complete(request.isDetailed() ? message.copyLine() : null, receivedNanos);
+				repliesMatched.increment();
+			} else {
+				//Failures always keep the response
+				increment(wrongReplyCounts, eventType);
+				request.completeWrong(message.copyLine(), receivedNanos);
+			}
+			latencies.record(request, client);
+			FlightRecorderEvents.replyMatched(client, message, request, expected);
+			return true;
+		}
+		if (reply)
+			unclaimedReplies.incrementAndGet();
+		return reply;
+	}
+
+	/**
+	 * Parse the fixed width bot number starting at the given position
+	 * @return The bot number or -1 if there isn't a number there
+	 */
+	protected static int parseBotNumber(byte[] line, int start, int lineEnd) {
+		int end = start + IrcBotSampler.nickNumberLength;
+		if (end > lineEnd)
+			return -1;
+		int number = 0;
+		for (int i = start; i < end; i++) {
+			byte curByte = line[i];
+			if (curByte < '0' || curByte > '9')
+				return -1;
+			number = number * 10 + (curByte - '0');
+		}
+		return number;
+	}
+
+	/**
+	 * @return Where the token ends, after the optional separator and sequence
+	 * that start at the given position
+	 */
+	protected static int sequenceEnd(byte[] line, int start, int lineEnd) {
+		if (start >= lineEnd || line[start] != PendingRequest.sequenceSeparator)
+			return start;
+		int end = start + 1;
+		int digitsEnd = Math.min(lineEnd, end + maxSequenceDigits);
+		while (end < digitsEnd && line[end] >= '0' && line[end] <= '9')
+			end++;
+		return end;
+	}
+
+	/**
+	 * Parse the optional sequence number that follows the separator at the
+	 * given position
+	 * @return The sequence or 0 if there isn't one, or it's out of the range
+	 * samplers number their requests in
+	 */
+	protected static int parseSequence(byte[] line, int start, int lineEnd) {
+		if (start >= lineEnd || line[start] != PendingRequest.sequenceSeparator)
+			return 0;
+		long sequence = 0;
+		int digitsEnd = Math.min(lineEnd, start + 1 + maxSequenceDigits);
+		for (int i = start + 1; i < digitsEnd; i++) {
+			byte curByte = line[i];
+			if (curByte < '0' || curByte > '9')
+				break;
+			sequence = sequence * 10 + (curByte - '0');
+		}
+		return sequence > Integer.MAX_VALUE ? 0 : (int) sequence;
+	}
+
+	public long getRepliesMatched() {
+		return repliesMatched.sum();
+	}
+
+	public long getWrongReplies() {
+		long wrongReplies = 0;
+		for (AtomicLong curCount : wrongReplyCounts.values())
+			wrongReplies += curCount.get();
+		return wrongReplies;
+	}
+
+	public long getUnclaimedReplies() {
+		return unclaimedReplies.get();
+	}
+
+	public int size() {
+		return pending.size();
+	}
+
+	public void clear() {
+		if (!timeoutCounts.isEmpty())
+			log.info("Reply timeouts by event type: " + getTimeoutCounts());
+		if (!wrongReplyCounts.isEmpty())
+			log.info("Replies not matching their reply rules by event type: " + getWrongReplyCounts());
+		if (unclaimedReplies.get() > 0)
+			log.info(unclaimedReplies.getAndSet(0) + " replies arrived after their request completed or timed out");
+		synchronized (this) {
+			if (timerWheel != null)
+				timerWheel.stop();
+			timerWheel = null;
+			nickPrefixes.clear();
+			rebuildMatcher();
+		}
+		pending.clear();
+		timeoutCounts.clear();
+		wrongReplyCounts.clear();
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A traffic log replayed by samplers. Each line is an epoch millisecond
+ * timestamp, a space and the raw IRC line as a bot would receive it, the same
+ * format SessionRecorder writes. The file is memory mapped a window at a time
+ * and lines are copied straight out of the mapping, so logs far bigger than
+ * the heap can be replayed. Only lines from a user (prefix with a '!') are
+ * replayed, server numerics and lines sent by bots (which SessionRecorder
+ * marks) are skipped.
+ * <p>
+ * Every sampler replaying the same file shares one cursor, so together they
+ * replay the log once. At the end it wraps around, with timestamps continuing
+ * on from the end of the previous pass
+ * @author lordquackstar
+ */
+public class ReplayLog {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	/**
+	 * Bytes mapped at once. Lines crossing the end of a window cause the next
+	 * window to be mapped starting at that line
+	 */
+	public static final int windowBytes = 64 * 1024 * 1024;
+	/**
+	 * Open logs by canonical path
+	 */
+	protected static final Map<String, ReplayLog> openLogs = new HashMap<String, ReplayLog>();
+	@Getter
+	protected final String path;
+	protected final RandomAccessFile file;
+	protected final FileChannel channel;
+	protected final long size;
+	protected MappedByteBuffer window;
+	protected long windowStart = 0;
+	/**
+	 * File offset of the next line
+	 */
+	protected long position = 0;
+	protected long firstTimestamp = -1;
+	protected long lastTimestamp = -1;
+	/**
+	 * Milliseconds added to timestamps for each completed pass
+	 */
+	protected long loopOffset = 0;
+	protected long lastOffset = 0;
+	/**
+	 * When the first line was due, shared so every sampler agrees on the clock
+	 */
+	protected long startNanos = -1;
+	@Getter
+	protected long linesReplayed = 0;
+	@Getter
+	protected long linesSkipped = 0;
+	protected long linesThisPass = 0;
+	@Getter
+	protected int passes = 0;
+
+	protected ReplayLog(String path) throws IOException {
+		this.path = path;
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		size = channel.size();
+	}
+
+	/**
+	 * Get the shared log for the file, opening it if no sampler has yet
+	 */
+	public static synchronized ReplayLog open(String path) throws IOException {
+		String key = new File(path).getCanonicalPath();
+		ReplayLog replayLog = openLogs.get(key);
+		if (replayLog == null) {
+			replayLog = new ReplayLog(key);
+			openLogs.put(key, replayLog);
+			log.info("Replaying " + replayLog.size + " byte log " + key);
+		}
+		return replayLog;
+	}
+
+	/**
+	 * Close every open log, called when the test ends
+	 */
+	public static synchronized void closeAll() {
+		for (ReplayLog curLog : openLogs.values())
+			curLog.close();
+		openLogs.clear();
+	}
+
+	/**
+	 * Copy the next replayable line into line
+	 * @return False if the file has no replayable lines at all
+	 */
+	public synchronized boolean next(Line line) throws IOException {
+		while (true) {
+			if (position >= size) {
+				//Wrap around, unless a whole pass found nothing
+				if (linesThisPass == 0)
+					return false;
+				loopOffset += lastTimestamp - firstTimestamp + 1;
+				linesThisPass = 0;
+				position = 0;
+				passes++;
+			}
+			long lineStart = position;
+			long lineEnd = findLineEnd(lineStart);
+			if (lineEnd == -1) {
+				//Longer than a whole window, can't be a sane IRC line
+				linesSkipped++;
+				position = windowStart + window.limit();
+				continue;
+			}
+			position = lineEnd + 1;
+			if (readLine(lineStart, lineEnd, line)) {
+				linesReplayed++;
+				linesThisPass++;
+				return true;
+			}
+			linesSkipped++;
+		}
+	}
+
+	/**
+	 * @return The file offset of the LF (or end of file) ending the line that
+	 * starts at lineStart, or -1 if there isn't one within a window
+	 */
+	protected long findLineEnd(long lineStart) throws IOException {
+		if (window == null || lineStart < windowStart || lineStart >= windowStart + window.limit())
+			map(lineStart);
+		for (int attempt = 0; attempt < 2; attempt++) {
+			int limit = window.limit();
+			for (int i = (int) (lineStart - windowStart); i < limit; i++)
+				if (window.get(i) == '\n')
+					return windowStart + i;
+			if (windowStart + limit >= size)
+				return size;
+			if (lineStart == windowStart)
+				return -1;
+			//Crosses the end of the window, map again starting at the line
+			map(lineStart);
+		}
+		return -1;
+	}
+
+	protected void map(long start) throws IOException {
+		windowStart = start;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, size - start));
+	}
+
+	/**
+	 * Parse the timestamp and copy the IRC line if its replayable
+	 * @return False if the line should be skipped
+	 */
+	protected boolean readLine(long lineStart, long lineEnd, Line line) {
+		int start = (int) (lineStart - windowStart);
+		int end = (int) (lineEnd - windowStart);
+		if (end > start && window.get(end - 1) == '\r')
+			end--;
+
+		//Timestamp
+		long timestamp = 0;
+		int position = start;
+		for (; position < end && window.get(position) != ' '; position++) {
+			byte curByte = window.get(position);
+			if (curByte < '0' || curByte > '9')
+				return false;
+			timestamp = timestamp * 10 + (curByte - '0');
+		}
+		if (position == start || ++position >= end)
+			return false;
+
+		//Only lines from users, prefix must be a hostmask. Bots' lines are marked
+		if (window.get(position) != ':')
+			return false;
+		boolean hostmask = false;
+		for (int i = position + 1; i < end && window.get(i) != ' '; i++)
+			if (window.get(i) == '!') {
+				hostmask = true;
+				break;
+			}
+		int length = end - position;
+		if (!hostmask || length > LineReader.maxLineLength)
+			return false;
+
+		if (firstTimestamp == -1)
+			firstTimestamp = timestamp;
+		lastTimestamp = Math.max(lastTimestamp, timestamp);
+		//Out of order timestamps are sent right after the line before
+		lastOffset = Math.max(lastOffset, timestamp - firstTimestamp + loopOffset);
+		line.offsetMillis = lastOffset;
+		if (line.data.length < length)
+			line.data = new byte[Math.max(length, line.data.length * 2)];
+		for (int i = 0; i < length; i++)
+			line.data[i] = window.get(position + i);
+		line.length = length;
+		return true;
+	}
+
+	/**
+	 * @param offsetMillis Milliseconds after the first line the line was logged
+	 * @param speed How many times faster than the original to replay
+	 * @return When the line is due to be sent
+	 */
+	public synchronized long dueNanos(long offsetMillis, double speed) {
+		if (startNanos == -1)
+			startNanos = System.nanoTime();
+		return startNanos + (long) (offsetMillis * 1000000d / speed);
+	}
+
+	protected synchronized void close() {
+		log.info("Replayed " + linesReplayed + " lines from " + path + " in " + (passes + 1) + " passes, skipped " + linesSkipped + " lines");
+		window = null;
+		try {
+			file.close();
+		} catch (IOException ex) {
+			log.error("Could not close replay log " + path, ex);
+		}
+	}
+
+	/**
+	 * A line copied out of the log. Reused by its sampler for every line
+	 */
+	public static class Line {
+		/**
+		 * The IRC line without CRLF, only the first length bytes are valid
+		 */
+		protected byte[] data = new byte[512];
+		protected int length;
+		/**
+		 * Milliseconds after the first line of the log, including previous passes
+		 */
+		protected long offsetMillis;
+	}
+}
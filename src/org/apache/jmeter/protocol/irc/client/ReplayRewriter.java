@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import lombok.Getter;
+
+/**
+ * Rewrites a replayed line into a sampler's namespace: the sender becomes the
+ * sampler's token so the reply can be matched, channels map onto the
+ * sampler's channels (the same original channel always maps to the same
+ * one) and private messages go to the target nick. Nicks the recorded line
+ * acts on (KICK, INVITE and MODE +o/+v style arguments) become the target
+ * nick, or the sampler's token without one, and ban style masks become that
+ * nick's mask, since the recorded network's users don't exist here. User
+ * modes are set on the sampler's own token.
+ * Everything else, including the message text, is replayed untouched
+ * @author lordquackstar
+ */
+public class ReplayRewriter {
+	protected static final byte[] hostmaskSuffix = "!~jmeter@bots.jmeter".getBytes(IrcServer.charset);
+	protected static final byte[] privmsgCommand = "PRIVMSG".getBytes(IrcServer.charset);
+	protected static final byte[] noticeCommand = "NOTICE".getBytes(IrcServer.charset);
+	protected static final byte[] kickCommand = "KICK".getBytes(IrcServer.charset);
+	protected static final byte[] inviteCommand = "INVITE".getBytes(IrcServer.charset);
+	protected static final byte[] modeCommand = "MODE".getBytes(IrcServer.charset);
+	protected static final byte[] maskSuffix = "!*@*".getBytes(IrcServer.charset);
+	/**
+	 * Channel modes whose argument is a nick or a mask. Other modes with an
+	 * argument (key, limit) are left alone
+	 */
+	protected static final String nickModes = "ovhqa";
+	protected static final String maskModes = "beI";
+	/**
+	 * What a parameter of the current line holds
+	 */
+	protected static final byte paramOther = 0;
+	protected static final byte paramNick = 1;
+	protected static final byte paramMask = 2;
+	/**
+	 * A user mode's target, which can only be the sender
+	 */
+	protected static final byte paramSelf = 3;
+	/**
+	 * One template per command so replayed lines get their own histograms and
+	 * timeout counts, eg replayPRIVMSG. Common commands are precompiled, others
+	 * are appended as they're first seen. Copy on write so lookups don't lock
+	 */
+	protected static volatile CommandTemplate[] templates = {
+		new CommandTemplate("PRIVMSG"),
+		new CommandTemplate("NOTICE"),
+		new CommandTemplate("JOIN"),
+		new CommandTemplate("PART"),
+		new CommandTemplate("QUIT"),
+		new CommandTemplate("NICK"),
+		new CommandTemplate("TOPIC"),
+		new CommandTemplate("MODE"),
+		new CommandTemplate("KICK")
+	};
+	protected final IrcMessage message = new IrcMessage();
+	protected final byte[] nick;
+	protected final byte[] targetNick;
+	protected final byte[][] channelNames;
+	protected byte[] buffer = new byte[512];
+	protected byte[] paramKinds = new byte[16];
+	/**
+	 * Index into channelNames of the first channel in the last line, -1 if it
+	 * had none
+	 */
+	@Getter
+	protected int channelIndex;
+
+	/**
+	 * @param targetNick Nick private messages are sent to, empty to keep the
+	 * original
+	 */
+	public ReplayRewriter(byte[] nick, byte[] targetNick, byte[][] channelNames) {
+		this.nick = nick;
+		this.targetNick = targetNick;
+		this.channelNames = channelNames;
+	}
+
+	/**
+	 * Rewrite the line into the internal buffer, including the trailing CRLF
+	 * @param sequence The request's sequence number, 0 for a plain nick
+	 * @return The number of bytes written
+	 */
+	public int rewrite(ReplayLog.Line line, int sequence) {
+		message.parse(line.data, 0, line.length);
+		channelIndex = -1;
+		int position = 0;
+		position = put((byte) ':', position);
+		position = putToken(sequence, position);
+		position = put(hostmaskSuffix, 0, hostmaskSuffix.length, position);
+		position = put((byte) ' ', position);
+		position = put(line.data, message.getCommandStart(), message.getCommandEnd() - message.getCommandStart(), position);
+
+		boolean privateTarget = message.isCommand(privmsgCommand) || message.isCommand(noticeCommand);
+		int numParams = message.getNumParams();
+		classifyParams(line.data, numParams);
+		for (int i = 0; i < numParams; i++) {
+			int start = message.getParamStart(i);
+			int end = message.getParamEnd(i);
+			boolean trailing = i == numParams - 1 && line.data[start - 1] == ':';
+			position = put((byte) ' ', position);
+			if (trailing)
+				position = put((byte) ':', position);
+			if (paramKinds[i] == paramSelf)
+				position = putToken(sequence, position);
+			else if (paramKinds[i] != paramOther) {
+				position = putNick(sequence, position);
+				if (paramKinds[i] == paramMask)
+					position = put(maskSuffix, 0, maskSuffix.length, position);
+			} else if (start < end && isChannel(line.data[start]) && (!trailing || indexOf(line.data, start, end, (byte) ' ') == -1))
+				position = putChannels(line.data, start, end, position);
+			else if (i == 0 && privateTarget && targetNick.length > 0)
+				position = put(targetNick, 0, targetNick.length, position);
+			else
+				position = put(line.data, start, end - start, position);
+		}
+		position = put((byte) '\r', position);
+		return put((byte) '\n', position);
+	}
+
+	/**
+	 * Work out which parameters of the parsed line are nicks or masks
+	 */
+	protected void classifyParams(byte[] data, int numParams) {
+		if (paramKinds.length < numParams)
+			paramKinds = new byte[numParams];
+		for (int i = 0; i < numParams; i++)
+			paramKinds[i] = paramOther;
+		if (message.isCommand(kickCommand) && numParams > 1)
+			paramKinds[1] = paramNick;
+		else if (message.isCommand(inviteCommand) && numParams > 0)
+			paramKinds[0] = paramNick;
+		else if (message.isCommand(modeCommand) && numParams > 0 && !isChannel(data[message.getParamStart(0)]))
+			paramKinds[0] = paramSelf;
+		else if (message.isCommand(modeCommand) && numParams > 2) {
+			//Each mode taking an argument consumes the next parameter in order
+			boolean adding = true;
+			int arg = 2;
+			for (int i = message.getParamStart(1); i < message.getParamEnd(1) && arg < numParams; i++) {
+				char mode = (char) data[i];
+				if (mode == '+' || mode == '-')
+					adding = mode == '+';
+				else if (nickModes.indexOf(mode) != -1)
+					paramKinds[arg++] = paramNick;
+				else if (maskModes.indexOf(mode) != -1)
+					paramKinds[arg++] = paramMask;
+				else if (mode == 'k' || (mode == 'l' && adding))
+					arg++;
+			}
+		}
+	}
+
+	/**
+	 * Write the target nick, or the sampler's token if there isn't one
+	 */
+	protected int putNick(int sequence, int position) {
+		if (targetNick.length > 0)
+			return put(targetNick, 0, targetNick.length, position);
+		return putToken(sequence, position);
+	}
+
+	/**
+	 * Write the sampler's nick, tagged with the sequence number if it has one
+	 */
+	protected int putToken(int sequence, int position) {
+		position = put(nick, 0, nick.length, position);
+		if (sequence == 0)
+			return position;
+		position = put((byte) PendingRequest.sequenceSeparator, position);
+		ensureCapacity(position + 10);
+		return ResponseTemplate.putNumber(sequence, buffer, position);
+	}
+
+	/**
+	 * Write a comma separated channel list, mapping each one
+	 */
+	protected int putChannels(byte[] data, int start, int end, int position) {
+		while (start < end) {
+			int comma = indexOf(data, start, end, (byte) ',');
+			int channelEnd = comma == -1 ? end : comma;
+			int index = (hash(data, start, channelEnd) & Integer.MAX_VALUE) % channelNames.length;
+			if (channelIndex == -1)
+				channelIndex = index;
+			position = put(channelNames[index], 0, channelNames[index].length, position);
+			if (comma == -1)
+				break;
+			position = put((byte) ',', position);
+			start = comma + 1;
+		}
+		return position;
+	}
+
+	/**
+	 * The rewritten line, valid until the next rewrite
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Template for the replayed line's command
+	 */
+	public ResponseTemplate getTemplate() {
+		ResponseTemplate template = findTemplate(templates);
+		return template != null ? template : addTemplate();
+	}
+
+	protected ResponseTemplate findTemplate(CommandTemplate[] commandTemplates) {
+		for (CommandTemplate curTemplate : commandTemplates)
+			if (message.isCommand(curTemplate.upperCommand))
+				return curTemplate.template;
+		return null;
+	}
+
+	/**
+	 * Slow path for a command that hasn't been seen yet, only allocates once
+	 * per command
+	 */
+	protected ResponseTemplate addTemplate() {
+		synchronized (ReplayRewriter.class) {
+			//Another rewriter may have added it while waiting for the lock
+			CommandTemplate[] current = templates;
+			ResponseTemplate template = findTemplate(current);
+			if (template != null)
+				return template;
+			String command = new String(message.getBuffer(), message.getCommandStart(), message.getCommandEnd() - message.getCommandStart(), IrcServer.charset).toUpperCase();
+			CommandTemplate[] grown = new CommandTemplate[current.length + 1];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			grown[current.length] = new CommandTemplate(command);
+			templates = grown;
+			return grown[current.length].template;
+		}
+	}
+
+	protected static boolean isChannel(byte first) {
+		return first == '#' || first == '&';
+	}
+
+	/**
+	 * Case insensitive hash so #Foo and #foo map to the same channel
+	 */
+	protected static int hash(byte[] data, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			byte curByte = data[i];
+			if (curByte >= 'A' && curByte <= 'Z')
+				curByte += 'a' - 'A';
+			hash = 31 * hash + curByte;
+		}
+		return hash;
+	}
+
+	protected static int indexOf(byte[] data, int start, int end, byte value) {
+		for (int i = start; i < end; i++)
+			if (data[i] == value)
+				return i;
+		return -1;
+	}
+
+	protected int put(byte value, int position) {
+		ensureCapacity(position + 1);
+		buffer[position] = value;
+		return position + 1;
+	}
+
+	protected int put(byte[] src, int start, int length, int position) {
+		ensureCapacity(position + length);
+		System.arraycopy(src, start, buffer, position, length);
+		return position + length;
+	}
+
+	protected void ensureCapacity(int length) {
+		if (buffer.length < length) {
+			byte[] grown = new byte[Math.max(length, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, buffer.length);
+			buffer = grown;
+		}
+	}
+
+	protected static class CommandTemplate {
+		protected final byte[] upperCommand;
+		protected final ResponseTemplate template;
+
+		public CommandTemplate(String upperCommand) {
+			this.upperCommand = upperCommand.getBytes(IrcServer.charset);
+			this.template = new ResponseTemplate("replay" + upperCommand, ":${thisHostmask} " + upperCommand);
+		}
+	}
+}
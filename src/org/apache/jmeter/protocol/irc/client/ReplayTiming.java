@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+/**
+ * How a sampler paces the lines of a replayed log
+ * @author lordquackstar
+ */
+public enum ReplayTiming {
+	/**
+	 * Send each line when it was originally logged, relative to the first line
+	 */
+	ORIGINAL("Original Timing"),
+	/**
+	 * Original timing sped up (or slowed down) by the replay speed factor
+	 */
+	SCALED("Scaled Timing"),
+	/**
+	 * Ignore the timestamps, lines are paced by the arrival mode like
+	 * generated ones. In closed loop thats as fast as the bot replies
+	 */
+	MAX("As Fast As Possible");
+	protected final String displayName;
+
+	ReplayTiming(String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @return True if lines are sent at their logged times
+	 */
+	public boolean isTimed() {
+		return this != MAX;
+	}
+
+	public static ReplayTiming fromString(String value) {
+		for (ReplayTiming curTiming : values())
+			if (curTiming.name().equals(value) || curTiming.displayName.equals(value))
+				return curTiming;
+		return ORIGINAL;
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every string dispatch looks for, the nick prefixes and the literals of every
+ * reply rule, compiled into one Aho-Corasick automaton. A line is scanned once
+ * no matter how many samplers or rules there are, recording where each pattern
+ * occurs, and rules are then checked against those positions without looking
+ * at the line again. The automaton is a flat byte indexed transition table, so
+ * the scan is one array lookup per byte. Immutable, rebuilt when a nick prefix
+ * is added
+ * @author lordquackstar
+ */
+public class ReplyMatcher {
+	protected static final Charset patternKeyCharset = Charset.forName("ISO-8859-1");
+	protected static final ThreadLocal<Scan> scans = new ThreadLocal<Scan>() {
+		@Override
+		protected Scan initialValue() {
+			return new Scan();
+		}
+	};
+	/**
+	 * Patterns below this id are nick prefixes, the rest rule literals
+	 */
+	protected final int numNickPrefixes;
+	protected final int[] patternLengths;
+	/**
+	 * Next state, indexed by state * 256 + byte
+	 */
+	protected final int[] transitions;
+	/**
+	 * Patterns that end at each state, null if none do
+	 */
+	protected final int[][] outputs;
+	protected final Map<String, CompiledRule[]> rulesByEventType = new HashMap<String, CompiledRule[]>();
+
+	public ReplyMatcher(List<byte[]> nickPrefixes, List<ReplyRule> rules) {
+		numNickPrefixes = nickPrefixes.size();
+		List<byte[]> patterns = new ArrayList<byte[]>(nickPrefixes);
+		Map<String, Integer> literalIds = new HashMap<String, Integer>();
+		Map<String, List<CompiledRule>> ruleLists = new HashMap<String, List<CompiledRule>>();
+		for (ReplyRule curRule : rules) {
+			byte[][] literals = curRule.getLiterals();
+			int[] ids = new int[literals.length];
+			for (int i = 0; i < literals.length; i++) {
+				if (literals[i] == null)
+					continue;
+				String key = new String(literals[i], patternKeyCharset);
+				Integer id = literalIds.get(key);
+				if (id == null) {
+					literalIds.put(key, id = patterns.size());
+					patterns.add(literals[i]);
+				}
+				ids[i] = id;
+			}
+			List<CompiledRule> ruleList = ruleLists.get(curRule.getEventType());
+			if (ruleList == null)
+				ruleLists.put(curRule.getEventType(), ruleList = new ArrayList<CompiledRule>());
+			ruleList.add(new CompiledRule(curRule, ids));
+		}
+		for (Map.Entry<String, List<CompiledRule>> curEntry : ruleLists.entrySet())
+			rulesByEventType.put(curEntry.getKey(), curEntry.getValue().toArray(new CompiledRule[0]));
+
+		//Build the trie
+		patternLengths = new int[patterns.size()];
+		List<int[]> gotos = new ArrayList<int[]>();
+		List<int[]> outputList = new ArrayList<int[]>();
+		gotos.add(newRow());
+		outputList.add(null);
+		for (int id = 0; id < patterns.size(); id++) {
+			byte[] curPattern = patterns.get(id);
+			patternLengths[id] = curPattern.length;
+			int state = 0;
+			for (byte curByte : curPattern) {
+				int[] row = gotos.get(state);
+				if (row[curByte & 0xFF] == -1) {
+					row[curByte & 0xFF] = gotos.size();
+					gotos.add(newRow());
+					outputList.add(null);
+				}
+				state = row[curByte & 0xFF];
+			}
+			outputList.set(state, append(outputList.get(state), id));
+		}
+
+		//Breadth first, fill in failure links as transitions so the scan never backtracks
+		int numStates = gotos.size();
+		int[] failures = new int[numStates];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		int[] root = gotos.get(0);
+		for (int i = 0; i < 256; i++)
+			if (root[i] == -1)
+				root[i] = 0;
+			else
+				queue.add(root[i]);
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst();
+			int[] row = gotos.get(state);
+			int[] failureRow = gotos.get(failures[state]);
+			for (int i = 0; i < 256; i++)
+				if (row[i] == -1)
+					row[i] = failureRow[i];
+				else {
+					int child = row[i];
+					failures[child] = failureRow[i];
+					int[] inherited = outputList.get(failures[child]);
+					if (inherited != null)
+						for (int curId : inherited)
+							outputList.set(child, append(outputList.get(child), curId));
+					queue.add(child);
+				}
+		}
+
+		transitions = new int[numStates * 256];
+		for (int state = 0; state < numStates; state++)
+			System.arraycopy(gotos.get(state), 0, transitions, state * 256, 256);
+		outputs = outputList.toArray(new int[numStates][]);
+	}
+
+	protected static int[] newRow() {
+		int[] row = new int[256];
+		Arrays.fill(row, -1);
+		return row;
+	}
+
+	protected static int[] append(int[] ids, int id) {
+		if (ids == null)
+			return new int[]{id};
+		int[] newIds = Arrays.copyOf(ids, ids.length + 1);
+		newIds[ids.length] = id;
+		return newIds;
+	}
+
+	/**
+	 * Find every pattern in the line. The returned scan is reused by the next
+	 * call on the same thread
+	 */
+	public Scan scan(byte[] line, int start, int end) {
+		Scan scan = scans.get();
+		scan.line = line;
+		scan.count = 0;
+		int state = 0;
+		for (int i = start; i < end; i++) {
+			state = transitions[(state << 8) | (line[i] & 0xFF)];
+			int[] ended = outputs[state];
+			if (ended != null)
+				for (int curId : ended)
+					scan.add(curId, i + 1 - patternLengths[curId]);
+		}
+		return scan;
+	}
+
+	public boolean isNickPrefix(int pattern) {
+		return pattern < numNickPrefixes;
+	}
+
+	public int getPatternLength(int pattern) {
+		return patternLengths[pattern];
+	}
+
+	public boolean hasRules() {
+		return !rulesByEventType.isEmpty();
+	}
+
+	/**
+	 * Check a reply against its event type's rules
+	 * @param subjectStart Where rules start matching, the reply's command
+	 * @param tokenStart Where the request's token is in the line. ${thisNick}
+	 * matches any copy of it
+	 * @return True if the event type has no rules or any of them match
+	 */
+	public boolean isExpected(Scan scan, String eventType, int subjectStart, int subjectEnd, int tokenStart, int tokenEnd) {
+		CompiledRule[] rules = rulesByEventType.get(eventType);
+		if (rules == null)
+			return true;
+		for (CompiledRule curRule : rules)
+			if (matches(scan, curRule, 0, subjectStart, subjectEnd, tokenStart, tokenEnd))
+				return true;
+		return false;
+	}
+
+	protected boolean matches(Scan scan, CompiledRule compiled, int element, int position, int subjectEnd, int tokenStart, int tokenEnd) {
+		ReplyRule rule = compiled.rule;
+		int[] types = rule.getTypes();
+		for (; element < types.length; element++) {
+			int type = types[element];
+			if (type == ReplyRule.literal) {
+				if (!scan.occursAt(compiled.literalIds[element], position))
+					return false;
+				position += patternLengths[compiled.literalIds[element]];
+			} else if (type == ReplyRule.any) {
+				//Each . is one character, which may be several bytes of UTF-8
+				for (int i = 0; i < rule.getCounts()[element]; i++) {
+					if (position >= subjectEnd)
+						return false;
+					position++;
+					while (position < subjectEnd && (scan.line[position] & 0xC0) == 0x80)
+						position++;
+				}
+			} else if (type == ReplyRule.token) {
+				if (!isToken(scan.line, position, subjectEnd, tokenStart, tokenEnd))
+					return false;
+				position += tokenEnd - tokenStart;
+			} else {
+				//Star, which compiling guarantees is last or followed by the token or a literal
+				if (element + 1 == types.length)
+					return true;
+				//Try each place the next element could start, the token always starts with a nick prefix
+				boolean nextToken = types[element + 1] == ReplyRule.token;
+				int literalId = compiled.literalIds[element + 1];
+				for (int i = 0; i < scan.count; i++)
+					if (scan.starts[i] >= position && (nextToken ? isNickPrefix(scan.patterns[i]) : scan.patterns[i] == literalId)
+							&& matches(scan, compiled, element + 1, scan.starts[i], subjectEnd, tokenStart, tokenEnd))
+						return true;
+				return false;
+			}
+		}
+		return position == subjectEnd;
+	}
+
+	/**
+	 * @return True if a copy of the token, and not just the start of a longer
+	 * one, is at the position
+	 */
+	protected static boolean isToken(byte[] line, int position, int subjectEnd, int tokenStart, int tokenEnd) {
+		int end = position + tokenEnd - tokenStart;
+		if (end > subjectEnd || (end < subjectEnd && line[end] >= '0' && line[end] <= '9'))
+			return false;
+		for (int i = tokenStart; i < tokenEnd; i++)
+			if (line[position++] != line[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Where each pattern occurs in a line, in order of where they end
+	 */
+	public static class Scan {
+		protected byte[] line;
+		protected int[] patterns = new int[16];
+		protected int[] starts = new int[16];
+		protected int count = 0;
+
+		protected void add(int pattern, int start) {
+			if (count == patterns.length) {
+				patterns = Arrays.copyOf(patterns, count * 2);
+				starts = Arrays.copyOf(starts, count * 2);
+			}
+			patterns[count] = pattern;
+			starts[count] = start;
+			count++;
+		}
+
+		protected boolean occursAt(int pattern, int start) {
+			for (int i = 0; i < count; i++)
+				if (patterns[i] == pattern && starts[i] == start)
+					return true;
+			return false;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getPattern(int index) {
+			return patterns[index];
+		}
+
+		public int getStart(int index) {
+			return starts[index];
+		}
+	}
+
+	protected static class CompiledRule {
+		protected final ReplyRule rule;
+		/**
+		 * Per element, the pattern id of a literal element
+		 */
+		protected final int[] literalIds;
+
+		protected CompiledRule(ReplyRule rule, int[] literalIds) {
+			this.rule = rule;
+			this.literalIds = literalIds;
+		}
+	}
+}
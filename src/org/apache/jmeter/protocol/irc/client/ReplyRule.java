@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * What the reply to an event type should look like. Matched against the
+ * reply line from its command on (any prefix the bot sent is skipped), with
+ * ${thisNick} standing for the request's token. Rules are loaded from a file
+ * with one per line:
+ * <pre>eventType literal|prefix|regex pattern</pre>
+ * A literal must be the whole line, a prefix the start of it. A regex must
+ * match the whole line but is restricted to literals, . and .* (with \
+ * escaping) so that every rule can be matched by one shared automaton. A .
+ * matches one character of the UTF-8 reply, however many bytes it takes. An
+ * event type with several rules accepts a reply matching any of them, one
+ * with none accepts any reply. Blank lines and lines starting with # are
+ * ignored
+ * @author lordquackstar
+ */
+@Getter
+public class ReplyRule {
+	public static final String tokenVariable = "${thisNick}";
+	/**
+	 * Element types a rule is compiled to
+	 */
+	public static final int literal = 0;
+	/**
+	 * Exactly count characters, each one UTF-8 code point
+	 */
+	public static final int any = 1;
+	public static final int token = 2;
+	/**
+	 * Any run of characters
+	 */
+	public static final int star = 3;
+	/**
+	 * Regex characters other than \ and . that rules don't support unescaped
+	 */
+	protected static final String specialChars = "[](){}|?+*^$";
+	protected final String eventType;
+	protected final Kind kind;
+	protected final String pattern;
+	protected final int[] types;
+	/**
+	 * Per element, the count of an any element
+	 */
+	protected final int[] counts;
+	/**
+	 * Per element, the bytes of a literal element
+	 */
+	protected final byte[][] literals;
+
+	public ReplyRule(String eventType, Kind kind, String pattern) {
+		this.eventType = eventType;
+		this.kind = kind;
+		this.pattern = pattern;
+		List<Integer> typeList = new ArrayList<Integer>();
+		List<Integer> countList = new ArrayList<Integer>();
+		List<byte[]> literalList = new ArrayList<byte[]>();
+		ByteArrayOutputStream curLiteral = new ByteArrayOutputStream();
+		int position = 0;
+		while (position < pattern.length()) {
+			char curChar = pattern.charAt(position);
+			int element = -1;
+			if (pattern.startsWith(tokenVariable, position)) {
+				element = token;
+				position += tokenVariable.length();
+			} else if (kind == Kind.REGEX && curChar == '\\') {
+				if (position + 1 == pattern.length())
+					throw new IllegalArgumentException("Dangling \\ at the end of " + pattern);
+				curChar = pattern.charAt(position + 1);
+				//Anything else is an escape like \d that isn't supported, not a literal
+				if (("\\." + specialChars).indexOf(curChar) == -1)
+					throw new IllegalArgumentException("Only special characters can be escaped in reply rule regexes, not \\" + curChar + " in " + pattern);
+				position += 2;
+			} else if (kind == Kind.REGEX && curChar == '.') {
+				boolean isStar = position + 1 < pattern.length() && pattern.charAt(position + 1) == '*';
+				element = isStar ? star : any;
+				position += isStar ? 2 : 1;
+			} else if (kind == Kind.REGEX && specialChars.indexOf(curChar) != -1)
+				throw new IllegalArgumentException("Only literals, . and .* are supported in reply rule regexes, not " + curChar + " in " + pattern);
+			else
+				position++;
+			if (element == -1) {
+				byte[] encoded = String.valueOf(curChar).getBytes(IrcServer.charset);
+				curLiteral.write(encoded, 0, encoded.length);
+				continue;
+			}
+			addLiteral(typeList, countList, literalList, curLiteral);
+			//Merge runs of wildcards, with any always before star so a star is only followed by a literal or the token
+			int last = typeList.size() - 1;
+			if (element == any && last >= 0 && typeList.get(last) == any)
+				countList.set(last, countList.get(last) + 1);
+			else if (element == any && last >= 0 && typeList.get(last) == star) {
+				if (last > 0 && typeList.get(last - 1) == any)
+					countList.set(last - 1, countList.get(last - 1) + 1);
+				else {
+					typeList.add(last, any);
+					countList.add(last, 1);
+					literalList.add(last, null);
+				}
+			} else if (element != star || last < 0 || typeList.get(last) != star) {
+				typeList.add(element);
+				countList.add(1);
+				literalList.add(null);
+			}
+		}
+		addLiteral(typeList, countList, literalList, curLiteral);
+		if (kind == Kind.PREFIX && (typeList.isEmpty() || typeList.get(typeList.size() - 1) != star)) {
+			typeList.add(star);
+			countList.add(1);
+			literalList.add(null);
+		}
+		types = new int[typeList.size()];
+		counts = new int[types.length];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = typeList.get(i);
+			counts[i] = countList.get(i);
+		}
+		literals = literalList.toArray(new byte[types.length][]);
+	}
+
+	protected static void addLiteral(List<Integer> typeList, List<Integer> countList, List<byte[]> literalList, ByteArrayOutputStream curLiteral) {
+		if (curLiteral.size() == 0)
+			return;
+		typeList.add(literal);
+		countList.add(1);
+		literalList.add(curLiteral.toByteArray());
+		curLiteral.reset();
+	}
+
+	/**
+	 * Load rules from a file in the format described above
+	 */
+	public static List<ReplyRule> load(String path) throws IOException {
+		List<ReplyRule> rules = new ArrayList<ReplyRule>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), IrcServer.charset));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				String trimmed = line.trim();
+				if (trimmed.length() == 0 || trimmed.startsWith("#"))
+					continue;
+				String[] parts = trimmed.split(" ", 3);
+				Kind kind = parts.length == 3 ? Kind.fromString(parts[1]) : null;
+				if (kind == null)
+					throw new IOException(path + ":" + lineNumber + ": Expected eventType literal|prefix|regex pattern, got " + line);
+				try {
+					rules.add(new ReplyRule(parts[0], kind, parts[2]));
+				} catch (IllegalArgumentException e) {
+					throw new IOException(path + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return rules;
+	}
+
+	@Override
+	public String toString() {
+		return eventType + " " + kind + " " + pattern;
+	}
+
+	public enum Kind {
+		LITERAL("literal"),
+		PREFIX("prefix"),
+		REGEX("regex");
+		protected final String displayName;
+
+		Kind(String displayName) {
+			this.displayName = displayName;
+		}
+
+		/**
+		 * @return The kind or null if there isn't one by that name
+		 */
+		public static Kind fromString(String value) {
+			for (Kind curKind : values())
+				if (curKind.name().equals(value) || curKind.displayName.equals(value))
+					return curKind;
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return displayName;
+		}
+	}
+}
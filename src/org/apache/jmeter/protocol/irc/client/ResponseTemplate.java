@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * A response line compiled once into constant byte segments and variable
+ * slots. Immutable, so one instance is shared by every sampler; each sampler
+ * renders it with its own slot values straight into a reusable byte buffer
+ * @author lordquackstar
+ */
+public class ResponseTemplate {
+	protected static final Charset charset = Charset.forName("UTF-8");
+	/**
+	 * The sampler's nick, followed by the request's sequence number if it has
+	 * one
+	 */
+	public static final int slotToken = 0;
+	public static final int slotTargetNick = 1;
+	public static final int slotCommand = 2;
+	public static final int slotChannel = 3;
+	public static final int numSlots = 4;
+	protected static final String[] slotNames = {"${thisNick}", "${targetNick}", "${command}", "${channel}"};
+	protected static final byte[] lineEnd = {'\r', '\n'};
+	/**
+	 * Short name of the event this template belongs to, eg channelCommand
+	 */
+	@Getter
+	protected final String eventType;
+	@Getter
+	protected final String source;
+	/**
+	 * The line's IRC command in upper case, eg PRIVMSG or JOIN
+	 */
+	@Getter
+	protected final String command;
+	/**
+	 * Constant segments. literals[i] comes before slots[i], the last literal
+	 * comes after the last slot
+	 */
+	protected final byte[][] literals;
+	protected final int[] slots;
+	protected final int literalLength;
+	@Getter
+	protected final boolean usesChannel;
+	@Getter
+	protected final boolean usesTargetNick;
+
+	public ResponseTemplate(String eventType, String source) {
+		this.eventType = eventType;
+		this.source = source;
+		String[] parts = source.split(" ");
+		command = (source.startsWith(":") && parts.length > 1 ? parts[1] : parts[0]).toUpperCase();
+		//The hostmask is just the nick plus a constant
+		String expanded = source.replace("${thisHostmask}", "${thisNick}!~jmeter@bots.jmeter");
+
+		List<byte[]> literalList = new ArrayList<byte[]>();
+		List<Integer> slotList = new ArrayList<Integer>();
+		int position = 0;
+		while (true) {
+			//Find the next slot
+			int nextIndex = -1;
+			int nextSlot = -1;
+			for (int i = 0; i < numSlots; i++) {
+				int index = expanded.indexOf(slotNames[i], position);
+				if (index != -1 && (nextIndex == -1 || index < nextIndex)) {
+					nextIndex = index;
+					nextSlot = i;
+				}
+			}
+			if (nextIndex == -1) {
+				literalList.add(expanded.substring(position).getBytes(charset));
+				break;
+			}
+			literalList.add(expanded.substring(position, nextIndex).getBytes(charset));
+			slotList.add(nextSlot);
+			position = nextIndex + slotNames[nextSlot].length();
+		}
+
+		literals = literalList.toArray(new byte[literalList.size()][]);
+		slots = new int[slotList.size()];
+		boolean channel = false;
+		boolean target = false;
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = slotList.get(i);
+			channel |= slots[i] == slotChannel;
+			target |= slots[i] == slotTargetNick;
+		}
+		usesChannel = channel;
+		usesTargetNick = target;
+		int length = lineEnd.length;
+		for (byte[] curLiteral : literals)
+			length += curLiteral.length;
+		literalLength = length;
+	}
+
+	/**
+	 * @return The number of bytes render() will write with these values
+	 */
+	public int measure(byte[][] values, int sequence) {
+		int length = literalLength;
+		for (int curSlot : slots) {
+			length += values[curSlot].length;
+			if (curSlot == slotToken && sequence != 0)
+				length += 1 + digits(sequence);
+		}
+		return length;
+	}
+
+	/**
+	 * Render the line, including the trailing CRLF, into dest which must have
+	 * room for measure() bytes
+	 * @param values Slot values indexed by slot number
+	 * @param sequence The request's sequence number, 0 for a plain nick
+	 * @return The number of bytes written
+	 */
+	public int render(byte[][] values, int sequence, byte[] dest) {
+		int position = 0;
+		for (int i = 0; i < slots.length; i++) {
+			position = put(literals[i], dest, position);
+			position = put(values[slots[i]], dest, position);
+			if (slots[i] == slotToken && sequence != 0) {
+				dest[position++] = (byte) PendingRequest.sequenceSeparator;
+				position = putNumber(sequence, dest, position);
+			}
+		}
+		position = put(literals[literals.length - 1], dest, position);
+		return put(lineEnd, dest, position);
+	}
+
+	protected static int put(byte[] src, byte[] dest, int position) {
+		System.arraycopy(src, 0, dest, position, src.length);
+		return position + src.length;
+	}
+
+	protected static int putNumber(int number, byte[] dest, int position) {
+		int end = position + digits(number);
+		for (int i = end - 1; i >= position; i--) {
+			dest[i] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+		return end;
+	}
+
+	protected static int digits(int number) {
+		int digits = 1;
+		while (number >= 10) {
+			number /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	@Override
+	public String toString() {
+		return eventType + ": " + source;
+	}
+}
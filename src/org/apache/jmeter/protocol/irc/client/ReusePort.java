@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Sets SO_REUSEPORT so several shards can listen on one port, with the kernel
+ * spreading connections between them. Only available on Java 9+ and operating
+ * systems that support it, so reflection is used to keep the plugin building
+ * and running on the Java versions JMeter supports
+ * @author lordquackstar
+ */
+public class ReusePort {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected static final SocketOption<Boolean> option;
+	/**
+	 * ServerSocket.setOption(), which blocking servers need
+	 */
+	protected static final Method serverSocketSetOption;
+	protected static final boolean supported;
+
+	static {
+		SocketOption<Boolean> reusePort = null;
+		Method setOption = null;
+		boolean works = false;
+		try {
+			@SuppressWarnings("unchecked")
+			SocketOption<Boolean> field = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			reusePort = field;
+			setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				works = channel.supportedOptions().contains(reusePort);
+			} finally {
+				channel.close();
+			}
+			if (!works)
+				log.debug("SO_REUSEPORT not supported by this operating system");
+		} catch (Exception e) {
+			log.debug("SO_REUSEPORT not supported by this JVM: " + e);
+		}
+		option = reusePort;
+		serverSocketSetOption = setOption;
+		supported = works;
+	}
+
+	public static boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * Set SO_REUSEPORT on an unbound channel
+	 */
+	public static void enable(ServerSocketChannel channel) throws IOException {
+		if (!supported)
+			throw new IOException("SO_REUSEPORT is not supported, can't share a port");
+		channel.setOption(option, true);
+	}
+
+	/**
+	 * Set SO_REUSEPORT on an unbound socket
+	 */
+	public static void enable(ServerSocket socket) throws IOException {
+		if (!supported)
+			throw new IOException("SO_REUSEPORT is not supported, can't share a port");
+		try {
+			serverSocketSetOption.invoke(socket, option, true);
+		} catch (Exception e) {
+			throw new IOException("Could not set SO_REUSEPORT", e);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * The different ways the built in IRC server can serve its connections
+ * @author lordquackstar
+ */
+public enum ServerEngine {
+	/**
+	 * One blocking reader thread per connected client
+	 */
+	BLOCKING("Thread per Client") {
+		@Override
+		public IrcServer createServer(int port, IrcBotGui gui, int eventLoops) {
+			return new IrcServer(port, gui);
+		}
+	},
+	/**
+	 * One blocking reader per client like BLOCKING, but on virtual threads so
+	 * tens of thousands of clients don't cost a platform thread each
+	 */
+	VIRTUAL_THREADS("Virtual Thread per Client") {
+		@Override
+		public IrcServer createServer(int port, IrcBotGui gui, int eventLoops) {
+			IrcServer server = new IrcServer(port, gui);
+			server.setVirtualThreads(true);
+			return server;
+		}
+	},
+	/**
+	 * A few Selector based event loop threads shared by every client
+	 */
+	NIO("NIO Selector") {
+		@Override
+		public IrcServer createServer(int port, IrcBotGui gui, int eventLoops) {
+			return new NioIrcServer(port, gui, eventLoops);
+		}
+	};
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected final String displayName;
+
+	ServerEngine(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public abstract IrcServer createServer(int port, IrcBotGui gui, int eventLoops);
+
+	public static ServerEngine fromString(String value) {
+		for (ServerEngine curEngine : values())
+			if (curEngine.name().equals(value) || curEngine.displayName.equals(value))
+				return curEngine;
+		//Don't let a typo quietly benchmark the wrong engine
+		log.warn("Unknown server engine \"" + value + "\", using " + BLOCKING.name());
+		return BLOCKING;
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Counts what an IrcServer does and exposes it as an MBean named
+ * org.apache.jmeter.protocol.irc:type=IrcServer,port=PORT, plus ,shard=SHARD
+ * for a sharded server. Counting is cheap enough for every line, gauges like
+ * the queue depth are only worked out when read
+ * @author lordquackstar
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected final IrcServer server;
+	protected final StripedCounter linesIn = new StripedCounter();
+	protected final StripedCounter linesOut = new StripedCounter();
+	protected final StripedCounter bytesIn = new StripedCounter();
+	protected final StripedCounter bytesOut = new StripedCounter();
+	protected final StripedCounter unmatchedLines = new StripedCounter();
+	protected ObjectName name;
+	/**
+	 * Counts at the last rate calculation, rates are recalculated at most once
+	 * a second when read
+	 */
+	protected long rateNanos = System.nanoTime();
+	protected long rateLinesIn = 0;
+	protected long rateLinesOut = 0;
+	protected double linesInPerSecond = 0;
+	protected double linesOutPerSecond = 0;
+
+	public ServerMetrics(IrcServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Called for every line read from a client
+	 */
+	public void lineIn(IrcMessage message) {
+		linesIn.increment();
+		//Plus the CRLF
+		bytesIn.add(message.getEnd() - message.getStart() + 2);
+	}
+
+	/**
+	 * Called by writers after lines have been written to a client
+	 */
+	public void written(int lines, long bytes) {
+		linesOut.add(lines);
+		bytesOut.add(bytes);
+	}
+
+	public void unmatchedLine() {
+		unmatchedLines.increment();
+	}
+
+	/**
+	 * Register with the platform MBean server, replacing a closed server's
+	 * MBean left on the same port
+	 */
+	public void register() {
+		try {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("org.apache.jmeter.protocol.irc:type=IrcServer,port=" + server.getPort() + (server.getShard() >= 0 ? ",shard=" + server.getShard() : ""));
+			if (mbeanServer.isRegistered(name))
+				mbeanServer.unregisterMBean(name);
+			mbeanServer.registerMBean(this, name);
+		} catch (JMException ex) {
+			log.warn("Could not register IrcServer MBean, metrics won't be available over JMX", ex);
+			name = null;
+		}
+	}
+
+	public void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException ex) {
+			log.debug("Could not unregister IrcServer MBean", ex);
+		}
+		name = null;
+	}
+
+	@Override
+	public int getPort() {
+		return server.getPort();
+	}
+
+	@Override
+	public int getConnectedClients() {
+		return server.getClientCount();
+	}
+
+	@Override
+	public long getLinesIn() {
+		return linesIn.sum();
+	}
+
+	@Override
+	public long getLinesOut() {
+		return linesOut.sum();
+	}
+
+	@Override
+	public synchronized double getLinesInPerSecond() {
+		updateRates();
+		return linesInPerSecond;
+	}
+
+	@Override
+	public synchronized double getLinesOutPerSecond() {
+		updateRates();
+		return linesOutPerSecond;
+	}
+
+	protected void updateRates() {
+		long now = System.nanoTime();
+		double seconds = (now - rateNanos) / 1000000000d;
+		if (seconds < 1)
+			return;
+		long in = linesIn.sum();
+		long out = linesOut.sum();
+		linesInPerSecond = (in - rateLinesIn) / seconds;
+		linesOutPerSecond = (out - rateLinesOut) / seconds;
+		rateLinesIn = in;
+		rateLinesOut = out;
+		rateNanos = now;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getOutboundQueueDepth() {
+		long depth = 0;
+		for (IrcServer.Client curClient : server.getClients())
+			depth += curClient.getOutboundDepth();
+		return depth;
+	}
+
+	@Override
+	public int getPendingRequests() {
+		return server.pendingRequests.size();
+	}
+
+	@Override
+	public long getRepliesMatched() {
+		return server.pendingRequests.getRepliesMatched();
+	}
+
+	@Override
+	public long getWrongReplies() {
+		return server.pendingRequests.getWrongReplies();
+	}
+
+	@Override
+	public long getUnclaimedReplies() {
+		return server.pendingRequests.getUnclaimedReplies();
+	}
+
+	@Override
+	public long getUnmatchedLines() {
+		return unmatchedLines.sum();
+	}
+
+	@Override
+	public long getReplyTimeouts() {
+		long timeouts = 0;
+		for (long curCount : server.getTimeoutCounts().values())
+			timeouts += curCount;
+		return timeouts;
+	}
+
+	@Override
+	public long getThrottledLines() {
+		return server.getFloodStats().getThrottledLines();
+	}
+
+	@Override
+	public long getThrottleQueueDepth() {
+		long depth = 0;
+		for (IrcServer.Client curClient : server.getClients())
+			if (curClient.getFlood() != null)
+				depth += curClient.getFlood().getQueuedLines();
+		return depth;
+	}
+
+	@Override
+	public double getThrottleWaitMedianMicros() {
+		return server.getFloodStats().getWaits().getValueAtPercentile(50) / 1000d;
+	}
+
+	@Override
+	public double getThrottleWaitP99Micros() {
+		return server.getFloodStats().getWaits().getValueAtPercentile(99) / 1000d;
+	}
+
+	@Override
+	public double getThrottleWaitMaxMicros() {
+		return server.getFloodStats().getWaits().getMax() / 1000d;
+	}
+
+	@Override
+	public long getExcessFloodDisconnects() {
+		return server.getFloodStats().getExcessFloods();
+	}
+
+	@Override
+	public boolean isTls() {
+		return server.getTls() != null;
+	}
+
+	@Override
+	public long getTlsHandshakes() {
+		return server.getTls() != null ? server.getTls().getHandshakes() : 0;
+	}
+
+	@Override
+	public long getTlsResumedHandshakes() {
+		return server.getTls() != null ? server.getTls().getResumedHandshakes() : 0;
+	}
+
+	@Override
+	public double getTlsResumptionRate() {
+		return server.getTls() != null ? server.getTls().getResumptionRate() : 0;
+	}
+
+	@Override
+	public long getTlsFailedHandshakes() {
+		return server.getTls() != null ? server.getTls().getFailedHandshakes() : 0;
+	}
+
+	@Override
+	public double getTlsHandshakeMedianMicros() {
+		return server.getTls() != null ? server.getTls().getHandshakeLatency().getValueAtPercentile(50) / 1000d : 0;
+	}
+
+	@Override
+	public double getTlsHandshakeP99Micros() {
+		return server.getTls() != null ? server.getTls().getHandshakeLatency().getValueAtPercentile(99) / 1000d : 0;
+	}
+}
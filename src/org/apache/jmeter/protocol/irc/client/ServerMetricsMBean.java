@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+/**
+ * Live counters of an IrcServer, readable from JConsole or any JMX client
+ * while a test runs
+ * @author lordquackstar
+ */
+public interface ServerMetricsMBean {
+	int getPort();
+
+	int getConnectedClients();
+
+	long getLinesIn();
+
+	long getLinesOut();
+
+	double getLinesInPerSecond();
+
+	double getLinesOutPerSecond();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	/**
+	 * Lines queued for clients that haven't been written yet
+	 */
+	long getOutboundQueueDepth();
+
+	/**
+	 * Requests waiting for their reply
+	 */
+	int getPendingRequests();
+
+	/**
+	 * Replies that matched their event type's reply rules, or any reply if it
+	 * has none
+	 */
+	long getRepliesMatched();
+
+	/**
+	 * Replies that didn't match their event type's reply rules
+	 */
+	long getWrongReplies();
+
+	/**
+	 * Replies to requests that already completed or timed out
+	 */
+	long getUnclaimedReplies();
+
+	/**
+	 * Lines from clients that weren't a reply or a command the server handles
+	 */
+	long getUnmatchedLines();
+
+	long getReplyTimeouts();
+
+	/**
+	 * True if clients connect with TLS, so line and byte counts are for
+	 * encrypted traffic. Byte counts are always before encryption
+	 */
+	boolean isTls();
+
+	long getTlsHandshakes();
+
+	long getTlsResumedHandshakes();
+
+	/**
+	 * Share of TLS handshakes that resumed an earlier session
+	 */
+	double getTlsResumptionRate();
+
+	long getTlsFailedHandshakes();
+
+	/**
+	 * Time from accepting a connection to finishing its TLS handshake
+	 */
+	double getTlsHandshakeMedianMicros();
+
+	double getTlsHandshakeP99Micros();
+
+	/**
+	 * Lines from clients that had to wait for flood control
+	 */
+	long getThrottledLines();
+
+	/**
+	 * Lines read from clients that are still waiting for flood control
+	 */
+	long getThrottleQueueDepth();
+
+	/**
+	 * How long throttled lines waited between being read and handled
+	 */
+	double getThrottleWaitMedianMicros();
+
+	double getThrottleWaitP99Micros();
+
+	double getThrottleWaitMaxMicros();
+
+	long getExcessFloodDisconnects();
+}
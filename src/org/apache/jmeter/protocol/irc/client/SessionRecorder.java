@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import lombok.Getter;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Records the server's traffic in the format ReplayLog replays: an epoch
+ * millisecond timestamp, a space and the raw line. Lines sent to clients are
+ * written as is. Lines from clients are marked with a leading
+ * {@value #receivedMarker} so replay skips them, and get the client's hostmask
+ * as their prefix like a real server would relay them. Appends to an existing
+ * file
+ * @author lordquackstar
+ */
+public class SessionRecorder {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	/**
+	 * Marks a line received from a client, right after the timestamp
+	 */
+	public static final char receivedMarker = '<';
+	@Getter
+	protected final String path;
+	protected final OutputStream out;
+	/**
+	 * Scratch space for formatting timestamps without allocating
+	 */
+	protected final byte[] timestamp = new byte[20];
+	@Getter
+	protected long linesRecorded = 0;
+
+	public SessionRecorder(String path) throws IOException {
+		this.path = path;
+		out = new BufferedOutputStream(new FileOutputStream(path, true), 64 * 1024);
+	}
+
+	/**
+	 * Record an encoded line sent to a client
+	 * @param line The line including its CRLF
+	 */
+	public synchronized void recordSent(byte[] line) {
+		int end = line.length;
+		while (end > 0 && (line[end - 1] == '\n' || line[end - 1] == '\r'))
+			end--;
+		try {
+			writeTimestamp();
+			out.write(line, 0, end);
+			out.write('\n');
+			linesRecorded++;
+		} catch (IOException ex) {
+			log.error("Could not record line to " + path, ex);
+		}
+	}
+
+	/**
+	 * Record a line received from a registered client
+	 */
+	public synchronized void recordReceived(IrcServer.Client client, IrcMessage message) {
+		try {
+			writeTimestamp();
+			out.write(receivedMarker);
+			if (message.getPrefixStart() == message.getPrefixEnd()) {
+				out.write(':');
+				out.write(client.getHostmask().getBytes(IrcServer.charset));
+				out.write(' ');
+			}
+			out.write(message.getBuffer(), message.getStart(), message.getEnd() - message.getStart());
+			out.write('\n');
+			linesRecorded++;
+		} catch (IOException ex) {
+			log.error("Could not record line to " + path, ex);
+		}
+	}
+
+	protected void writeTimestamp() throws IOException {
+		long millis = System.currentTimeMillis();
+		int position = timestamp.length;
+		timestamp[--position] = ' ';
+		do {
+			timestamp[--position] = (byte) ('0' + millis % 10);
+			millis /= 10;
+		} while (millis > 0);
+		out.write(timestamp, position, timestamp.length - position);
+	}
+
+	public synchronized void flush() {
+		try {
+			out.flush();
+		} catch (IOException ex) {
+			log.error("Could not flush recording " + path, ex);
+		}
+	}
+
+	public synchronized void close() {
+		log.info("Recorded " + linesRecorded + " lines to " + path);
+		try {
+			out.close();
+		} catch (IOException ex) {
+			log.error("Could not close recording " + path, ex);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for the hot path. Threads add to their own cell, picked by thread
+ * id, and cells sit on separate cache lines so threads counting at once
+ * don't fight over one. Reading sums the cells, so it is only exact when no
+ * one is adding
+ * @author lordquackstar
+ */
+public class StripedCounter {
+	/**
+	 * Longs per cell, 64 bytes apart so each cell has its own cache line
+	 */
+	protected static final int cellSpacing = 8;
+	protected static final int numCells = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+	protected final AtomicLongArray cells = new AtomicLongArray(numCells * cellSpacing);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long value) {
+		cells.getAndAdd(cellIndex(), value);
+	}
+
+	protected static int cellIndex() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+		return ((hash >>> 16) & (numCells - 1)) * cellSpacing;
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < numCells; i++)
+			sum += cells.get(i * cellSpacing);
+		return sum;
+	}
+
+	public void reset() {
+		for (int i = 0; i < numCells; i++)
+			cells.set(i * cellSpacing, 0);
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import lombok.Getter;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * TLS for the built in server. Loads the server's key from a keystore,
+ * generating a self signed one with keytool if it doesn't exist, and keeps
+ * handshake statistics so TLS cost can be compared with plaintext runs
+ * @author lordquackstar
+ */
+public class TlsSupport {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	public static final String defaultKeystore = "irc-server.jks";
+	public static final String defaultKeystorePassword = "jmeterirc";
+	protected static final String keyAlias = "irc.jmeter";
+	@Getter
+	protected final String keystorePath;
+	protected final KeyStore keystore;
+	@Getter
+	protected final SSLContext serverContext;
+	protected SSLContext clientContext;
+	protected final AtomicLong handshakes = new AtomicLong();
+	protected final AtomicLong resumedHandshakes = new AtomicLong();
+	protected final AtomicLong failedHandshakes = new AtomicLong();
+	/**
+	 * Time from accepting the connection to finishing the handshake
+	 */
+	@Getter
+	protected final LatencyHistogram handshakeLatency = new LatencyHistogram();
+
+	public TlsSupport(String keystorePath, String password) throws IOException {
+		File keystoreFile = new File(keystorePath);
+		this.keystorePath = keystoreFile.getAbsolutePath();
+		if (!keystoreFile.exists())
+			generateKeystore(keystoreFile, password);
+		try {
+			keystore = KeyStore.getInstance("JKS");
+			InputStream in = new FileInputStream(keystoreFile);
+			try {
+				keystore.load(in, password.toCharArray());
+			} finally {
+				in.close();
+			}
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keystore, password.toCharArray());
+			serverContext = SSLContext.getInstance("TLS");
+			serverContext.init(keyManagers.getKeyManagers(), null, null);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Could not load TLS key from " + this.keystorePath, ex);
+		}
+	}
+
+	/**
+	 * Generate a keystore with a self signed certificate for irc.jmeter. There
+	 * is no API for making certificates, so this runs the JDK's keytool
+	 */
+	protected static void generateKeystore(File keystoreFile, String password) throws IOException {
+		log.info("Generating self signed TLS keystore " + keystoreFile.getAbsolutePath());
+		String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", keyAlias, "-keyalg", "RSA", "-keysize", "2048",
+				"-validity", "3650", "-dname", "CN=" + keyAlias, "-storetype", "JKS", "-keystore", keystoreFile.getAbsolutePath(),
+				"-storepass", password, "-keypass", password).redirectErrorStream(true).start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream in = process.getInputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			output.write(buffer, 0, read);
+		try {
+			if (process.waitFor() != 0 || !keystoreFile.exists())
+				throw new IOException("keytool could not generate " + keystoreFile.getAbsolutePath() + ": " + output.toString().trim());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted generating " + keystoreFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return An unbound server socket
+	 */
+	public ServerSocket createServerSocket() throws IOException {
+		return serverContext.getServerSocketFactory().createServerSocket();
+	}
+
+	public SSLEngine createEngine() {
+		SSLEngine engine = serverContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	/**
+	 * @return A context for clients that trusts the server's certificate,
+	 * used by loopback bots
+	 */
+	public synchronized SSLContext getClientContext() throws IOException {
+		if (clientContext == null)
+			try {
+				TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				trustManagers.init(keystore);
+				clientContext = SSLContext.getInstance("TLS");
+				clientContext.init(null, trustManagers.getTrustManagers(), null);
+			} catch (GeneralSecurityException ex) {
+				throw new IOException("Could not trust TLS key from " + keystorePath, ex);
+			}
+		return clientContext;
+	}
+
+	/**
+	 * Record a finished handshake. A resumed session was created by an
+	 * earlier connection, so it's older than this one
+	 * @param client The client the handshake was for
+	 */
+	public void handshakeFinished(IrcServer.Client client, SSLSession session) {
+		handshakes.incrementAndGet();
+		handshakeLatency.record(System.nanoTime() - client.getAcceptNanos());
+		if (session.getCreationTime() < client.getAcceptTime())
+			resumedHandshakes.incrementAndGet();
+	}
+
+	public void handshakeFailed() {
+		failedHandshakes.incrementAndGet();
+	}
+
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	public long getFailedHandshakes() {
+		return failedHandshakes.get();
+	}
+
+	/**
+	 * @return Share of handshakes that resumed a session, 0 before any
+	 */
+	public double getResumptionRate() {
+		long total = handshakes.get();
+		return total == 0 ? 0 : (double) resumedHandshakes.get() / total;
+	}
+
+	public String summary() {
+		return handshakes.get() + " handshakes, " + String.format("%.1f", getResumptionRate() * 100) + "% resumed, "
+				+ failedHandshakes.get() + " failed, latency " + handshakeLatency.summary();
+	}
+}
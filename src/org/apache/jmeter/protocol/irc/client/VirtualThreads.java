@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2011 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of JMeter-IRC.
+ *
+ * JMeter-IRC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JMeter-IRC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.jmeter.protocol.irc.client;
+
+import java.lang.reflect.Method;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Creates virtual threads when the running JVM supports them (Java 21+),
+ * otherwise platform threads. Reflection is used so the plugin still builds
+ * and runs on the Java versions JMeter supports
+ * @author lordquackstar
+ */
+public class VirtualThreads {
+	private static final Logger log = LoggingManager.getLoggerForClass();
+	protected static final Method ofVirtual;
+	protected static final Method builderName;
+	protected static final Method builderUnstarted;
+	protected static final boolean supported;
+
+	static {
+		Method ofVirtualMethod = null;
+		Method nameMethod = null;
+		Method unstartedMethod = null;
+		boolean works = false;
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+			nameMethod = builderClass.getMethod("name", String.class);
+			unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+			//Make sure they aren't a disabled preview feature
+			unstartedMethod.invoke(ofVirtualMethod.invoke(null), new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			works = true;
+		} catch (Exception e) {
+			log.debug("Virtual threads not supported by this JVM: " + e);
+		}
+		ofVirtual = ofVirtualMethod;
+		builderName = nameMethod;
+		builderUnstarted = unstartedMethod;
+		supported = works;
+	}
+
+	public static boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * Create an unstarted thread
+	 * @param virtual Try to create a virtual thread. Falls back to a daemon
+	 * platform thread if unsupported
+	 */
+	public static Thread newThread(String name, Runnable runnable, boolean virtual) {
+		if (virtual && supported)
+			try {
+				return (Thread) builderUnstarted.invoke(builderName.invoke(ofVirtual.invoke(null), name), runnable);
+			} catch (Exception e) {
+				throw new RuntimeException("Could not create virtual thread " + name, e);
+			}
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}